@@ -0,0 +1,46 @@
+package com.example.simplewatershed.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the usual JMH command line, list and help options included. Results are written as JSON to jmh-result.json unless -rf or -rff is given.
+ */
+public class BenchmarkRunner {
+	public static final String DEFAULT_RESULT = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+		if (commandLine.shouldList()) {
+			new Runner(commandLine).list();
+			return;
+		}
+		if (commandLine.shouldListWithParams()) {
+			new Runner(commandLine).listWithParams(commandLine);
+			return;
+		}
+		if (commandLine.shouldListProfilers()) {
+			commandLine.listProfilers();
+			return;
+		}
+		if (commandLine.shouldListResultFormats()) {
+			commandLine.listResultFormats();
+			return;
+		}
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			builder.result(DEFAULT_RESULT);
+		}
+		new Runner(builder.build()).run();
+	}
+}
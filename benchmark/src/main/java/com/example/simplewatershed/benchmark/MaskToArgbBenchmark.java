@@ -0,0 +1,49 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.simplewatershed.util.PixelConverter;
+
+/**
+ * The conversion of a dirty layer area from RGBA mat bytes to bitmap ARGB ints, the same code MatSurface.flush() runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskToArgbBenchmark {
+	/** The side of the dirty area */
+	@Param({ "64", "256", "1024" })
+	public int size;
+
+	private byte[] mRgba;
+	private int[] mArgb;
+
+	@Setup
+	public void setUp() {
+		mRgba = new byte[size * size * 4];
+		new Random(size).nextBytes(mRgba);
+		mArgb = new int[size * size];
+	}
+
+	@Benchmark
+	public int[] rgbaToArgb() {
+		PixelConverter.rgbaToArgb(mRgba, mArgb, size * size);
+		return mArgb;
+	}
+}
@@ -0,0 +1,15 @@
+package com.example.simplewatershed.benchmark;
+
+/**
+ * Load the natives of the desktop OpenCV jar once per process, before any Mat is created.
+ */
+public class NativeLibrary {
+	private static boolean sLoaded;
+
+	public static synchronized void load() {
+		if (!sLoaded) {
+			nu.pattern.OpenCV.loadLocally();
+			sLoaded = true;
+		}
+	}
+}
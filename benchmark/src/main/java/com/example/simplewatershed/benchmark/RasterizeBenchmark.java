@@ -0,0 +1,109 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * Drawing the markers of one stroke with OpenCV.<br>
+ * {@link #touchSegments()} is what ImageContainer does while the finger moves: one Core.line per touch move into the 4 channel line layer and
+ * the 1 channel markers. {@link #polyline()} is what the pipeline does with a recorded stroke: one Core.polylines into the markers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterizeBenchmark {
+	private static final int SIZE = 1024;
+	// The distance between touch moves, in image pixels
+	private static final int TOUCH_SPACING = 4;
+	private static final Scalar sWhite = new Scalar(255.0, 255.0, 255.0, 255.0);
+
+	@Param({ "LINE", "LOOP", "SCRIBBLE" })
+	public StrokeShape shape;
+
+	@Param({ "8", "20" })
+	public int thickness;
+
+	private Point[] mTouchPoints;
+	private List<MatOfPoint> mContours;
+	private Mat mLineLayer;
+	private Mat mMarkers;
+
+	@Setup
+	public void setUp() {
+		NativeLibrary.load();
+		int[] points = shape.points(SIZE, SIZE);
+		mTouchPoints = toTouchPoints(points);
+		Point[] polyline = new Point[points.length / 2];
+		for (int i = 0; i < polyline.length; i++) {
+			polyline[i] = new Point(points[i * 2], points[(i * 2) + 1]);
+		}
+		mContours = new ArrayList<MatOfPoint>(1);
+		mContours.add(new MatOfPoint(polyline));
+		mLineLayer = new Mat(SIZE, SIZE, CvType.CV_8UC4, new Scalar(0.0, 0.0, 0.0, 0.0));
+		mMarkers = new Mat(SIZE, SIZE, CvType.CV_8UC1, new Scalar(0.0));
+	}
+
+	@TearDown
+	public void tearDown() {
+		mContours.get(0).release();
+		mLineLayer.release();
+		mMarkers.release();
+	}
+
+	@Benchmark
+	public Mat touchSegments() {
+		for (int i = 1; i < mTouchPoints.length; i++) {
+			Core.line(mLineLayer, mTouchPoints[i - 1], mTouchPoints[i], sWhite, thickness, Core.LINE_8, 0);
+			Core.line(mMarkers, mTouchPoints[i - 1], mTouchPoints[i], WatershedSegmenter.sForeground, thickness, Core.LINE_8, 0);
+		}
+		return mMarkers;
+	}
+
+	@Benchmark
+	public Mat polyline() {
+		Core.polylines(mMarkers, mContours, false, WatershedSegmenter.sForeground, thickness);
+		return mMarkers;
+	}
+
+	/**
+	 * Split the polyline into the short segments a finger gives, {@link #TOUCH_SPACING} apart.
+	 */
+	private static Point[] toTouchPoints(int[] points) {
+		List<Point> touchPoints = new ArrayList<Point>();
+		touchPoints.add(new Point(points[0], points[1]));
+		for (int i = 2; i < points.length; i += 2) {
+			double dx = points[i] - points[i - 2];
+			double dy = points[i + 1] - points[i - 1];
+			int steps = Math.max((int) Math.ceil(Math.hypot(dx, dy) / TOUCH_SPACING), 1);
+			for (int s = 1; s <= steps; s++) {
+				touchPoints.add(new Point(points[i - 2] + ((dx * s) / steps), points[i - 1] + ((dy * s) / steps)));
+			}
+		}
+		return touchPoints.toArray(new Point[touchPoints.size()]);
+	}
+}
@@ -0,0 +1,87 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import com.example.simplewatershed.segmentation.MatArena;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * One stroke through {@link WatershedSegmenter#segment}, the same call the container's worker and the pipeline make: the background bounds
+ * search with OpenCV's watershed, redrawing markers and counting the result in each iteration.<br>
+ * The config is the app's default with an arena, as the container sets it up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+	@Param({ "512", "1024" })
+	public int size;
+
+	@Param({ "LINE", "LOOP", "SCRIBBLE" })
+	public StrokeShape shape;
+
+	@Param({ "0", "1" })
+	public int pyramidLevel;
+
+	private Mat mSource;
+	private Mat mCoarse;
+	private Mat mMarkers;
+	private WatershedConfig mConfig;
+	private MatArena mArena;
+	private Rect mBounds;
+
+	@Setup
+	public void setUp() {
+		mSource = new SyntheticImage(size, size).toMat();
+		mMarkers = SyntheticMarkers.stroke(size, size, shape);
+		for (int level = 0; level < pyramidLevel; level++) {
+			Mat next = new Mat();
+			Imgproc.pyrDown(mCoarse == null ? mSource : mCoarse, next);
+			if (mCoarse != null) {
+				mCoarse.release();
+			}
+			mCoarse = next;
+		}
+		mConfig = new WatershedConfig();
+		mConfig.setPyramidLevel(pyramidLevel);
+		mConfig.setArena(mArena = new MatArena());
+		mBounds = new Rect();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mArena.release();
+		mSource.release();
+		mMarkers.release();
+		if (mCoarse != null) {
+			mCoarse.release();
+		}
+	}
+
+	@Benchmark
+	public int segment() {
+		Mat foreground = WatershedSegmenter.segment(mSource, mCoarse, mMarkers, mConfig, mBounds, null);
+		MatArena.recycleTo(mArena, foreground);
+		return mBounds.width * mBounds.height;
+	}
+}
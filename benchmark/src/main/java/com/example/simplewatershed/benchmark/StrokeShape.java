@@ -0,0 +1,41 @@
+package com.example.simplewatershed.benchmark;
+
+/**
+ * Foreground strokes drawn inside the ellipse of {@link SyntheticImage}, as polylines of x, y pairs.
+ */
+public enum StrokeShape {
+	/** A short straight stroke through the center */
+	LINE,
+	/** A closed loop around the center */
+	LOOP,
+	/** A zigzag covering most of the object, the worst case for the bounding rect */
+	SCRIBBLE;
+
+	public int[] points(int width, int height) {
+		int cx = width / 2;
+		int cy = height / 2;
+		int rx = (int) (width * 0.2);
+		int ry = (int) (height * 0.15);
+		switch (this) {
+		case LINE:
+			return new int[] { cx - rx, cy, cx + rx, cy };
+		case LOOP:
+			int steps = 64;
+			int[] loop = new int[(steps + 1) * 2];
+			for (int i = 0; i <= steps; i++) {
+				double angle = (2 * Math.PI * i) / steps;
+				loop[i * 2] = cx + (int) (rx * Math.cos(angle));
+				loop[(i * 2) + 1] = cy + (int) (ry * Math.sin(angle));
+			}
+			return loop;
+		default:
+			int turns = 12;
+			int[] zigzag = new int[(turns + 1) * 2];
+			for (int i = 0; i <= turns; i++) {
+				zigzag[i * 2] = (cx - rx) + ((2 * rx * i) / turns);
+				zigzag[(i * 2) + 1] = ((i % 2) == 0) ? (cy - ry) : (cy + ry);
+			}
+			return zigzag;
+		}
+	}
+}
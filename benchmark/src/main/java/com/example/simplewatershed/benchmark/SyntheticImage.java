@@ -0,0 +1,77 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * A 3 channel test image: a noisy vertical gradient with an ellipse of another color in the middle, so watershed has one clear edge to find.
+ */
+public class SyntheticImage {
+	private final int mWidth;
+	private final int mHeight;
+	private final byte[] mPixels;
+
+	public SyntheticImage(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mPixels = new byte[width * height * 3];
+
+		Random random = new Random(width * 31 + height);
+		double cx = width / 2.0;
+		double cy = height / 2.0;
+		double rx = width * 0.3;
+		double ry = height * 0.25;
+		for (int y = 0; y < height; y++) {
+			int shade = 60 + ((y * 120) / height);
+			for (int x = 0; x < width; x++) {
+				double dx = (x - cx) / rx;
+				double dy = (y - cy) / ry;
+				boolean inside = ((dx * dx) + (dy * dy)) <= 1;
+				int noise = random.nextInt(9) - 4;
+				int p = ((y * width) + x) * 3;
+				if (inside) {
+					mPixels[p] = (byte) clamp(200 + noise);
+					mPixels[p + 1] = (byte) clamp(80 + noise);
+					mPixels[p + 2] = (byte) clamp(40 + noise);
+				} else {
+					mPixels[p] = (byte) clamp(shade + noise);
+					mPixels[p + 1] = (byte) clamp(shade + noise);
+					mPixels[p + 2] = (byte) clamp(shade + 20 + noise);
+				}
+			}
+		}
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Get the interleaved RGB pixels, row by row without padding
+	 */
+	public byte[] getPixels() {
+		return mPixels;
+	}
+
+	/**
+	 * Copy the pixels into a 3 channel mat, as the source image of the segmenter.
+	 *
+	 * @return The new mat, the caller should release it.
+	 */
+	public Mat toMat() {
+		NativeLibrary.load();
+		Mat mat = new Mat(mHeight, mWidth, CvType.CV_8UC3);
+		mat.put(0, 0, mPixels);
+		return mat;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+}
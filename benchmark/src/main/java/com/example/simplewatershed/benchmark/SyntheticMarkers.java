@@ -0,0 +1,59 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * Markers for {@link SyntheticImage}, drawn by OpenCV the same way the app draws user's strokes.
+ */
+public class SyntheticMarkers {
+	/**
+	 * Draw the foreground stroke, as the markers of one stroke are given to the segmenter.
+	 *
+	 * @return The 1 channel mask, the caller should release it.
+	 */
+	public static Mat stroke(int width, int height, StrokeShape shape) {
+		NativeLibrary.load();
+		Mat markers = new Mat(height, width, CvType.CV_8UC1, new Scalar(0));
+		int[] points = shape.points(width, height);
+		Point[] polyline = new Point[points.length / 2];
+		for (int i = 0; i < polyline.length; i++) {
+			polyline[i] = new Point(points[i * 2], points[(i * 2) + 1]);
+		}
+		List<MatOfPoint> contours = new ArrayList<MatOfPoint>(1);
+		contours.add(new MatOfPoint(polyline));
+		Core.polylines(markers, contours, false, WatershedSegmenter.sForeground, WatershedConfig.DEFAULT_THICKNESS);
+		contours.get(0).release();
+		return markers;
+	}
+
+	/**
+	 * Draw the foreground stroke and a background frame a 16th of the size inside the image, as labels for the engines.
+	 *
+	 * @return The labels, width * height
+	 */
+	public static int[] strokeAndFrame(int width, int height, StrokeShape shape) {
+		Mat markers = stroke(width, height, shape);
+		int margin = Math.min(width, height) / 16;
+		Core.rectangle(markers, new Point(margin, margin), new Point(width - margin, height - margin), WatershedSegmenter.sBackground,
+				WatershedConfig.DEFAULT_THICKNESS);
+		byte[] bytes = new byte[width * height];
+		markers.get(0, 0, bytes);
+		markers.release();
+		int[] labels = new int[width * height];
+		for (int i = 0; i < bytes.length; i++) {
+			labels[i] = bytes[i];
+		}
+		return labels;
+	}
+}
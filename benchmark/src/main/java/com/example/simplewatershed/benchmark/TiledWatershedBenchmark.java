@@ -0,0 +1,87 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.simplewatershed.segmentation.JavaWatershedEngine;
+import com.example.simplewatershed.segmentation.TiledWatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedEngine;
+
+/**
+ * Scaling of the tiled watershed from 1 to N threads, against the single-threaded engine.<br>
+ * The setup floods once and fails the run if the tiles were not kept, so the numbers are never of a repair. The labels are checked
+ * against the single engine by TiledWatershedEngineTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TiledWatershedBenchmark {
+	@Param({ "2048" })
+	public int size;
+
+	@Param({ "LOOP", "SCRIBBLE" })
+	public StrokeShape shape;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private SyntheticImage mImage;
+	private WatershedEngine mSingleEngine;
+	private TiledWatershedEngine mTiledEngine;
+	private int[] mInitialMarkers;
+	private int[] mMarkers;
+
+	@Setup
+	public void setUp() {
+		mImage = new SyntheticImage(size, size);
+		mSingleEngine = new JavaWatershedEngine();
+		mTiledEngine = new TiledWatershedEngine(new TiledWatershedEngine.Factory() {
+			@Override
+			public WatershedEngine newEngine() {
+				return new JavaWatershedEngine();
+			}
+		}, threads);
+
+		mInitialMarkers = SyntheticMarkers.strokeAndFrame(size, size, shape);
+		mMarkers = new int[size * size];
+
+		tiled();
+		if (mTiledEngine.getRepairCount() > 0) {
+			throw new IllegalStateException("Tiles were not kept, some were flooded again");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mTiledEngine.shutdown();
+	}
+
+	@Benchmark
+	public int[] single() {
+		System.arraycopy(mInitialMarkers, 0, mMarkers, 0, mMarkers.length);
+		mSingleEngine.watershed(mImage.getPixels(), size, size, 3, mMarkers);
+		return mMarkers;
+	}
+
+	@Benchmark
+	public int[] tiled() {
+		System.arraycopy(mInitialMarkers, 0, mMarkers, 0, mMarkers.length);
+		mTiledEngine.watershed(mImage.getPixels(), size, size, 3, mMarkers);
+		return mMarkers;
+	}
+}
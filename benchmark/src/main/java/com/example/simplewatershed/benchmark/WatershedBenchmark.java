@@ -0,0 +1,73 @@
+package com.example.simplewatershed.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * One flood over the whole image, from a foreground stroke and a background frame around it.<br>
+ * The flood goes through {@link WatershedSegmenter#flood}, the same call the segmenter makes on its mats: Imgproc.watershed in place for
+ * OpenCV's engine, and a copy to arrays and back for the Java engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatershedBenchmark {
+	@Param({ "256", "512", "1024" })
+	public int size;
+
+	@Param({ "LINE", "LOOP", "SCRIBBLE" })
+	public StrokeShape shape;
+
+	@Param({ WatershedConfig.ENGINE_OPENCV, WatershedConfig.ENGINE_JAVA })
+	public String engine;
+
+	private Mat mImage;
+	private WatershedEngine mEngine;
+	private Mat mInitialMarkers;
+	private Mat mMarkers;
+
+	@Setup
+	public void setUp() {
+		mImage = new SyntheticImage(size, size).toMat();
+		mEngine = WatershedConfig.newEngine(engine, 1);
+
+		mInitialMarkers = new Mat(size, size, CvType.CV_32SC1);
+		mInitialMarkers.put(0, 0, SyntheticMarkers.strokeAndFrame(size, size, shape));
+		mMarkers = new Mat(size, size, CvType.CV_32SC1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mImage.release();
+		mInitialMarkers.release();
+		mMarkers.release();
+	}
+
+	@Benchmark
+	public Mat flood() {
+		mInitialMarkers.copyTo(mMarkers);
+		WatershedSegmenter.flood(mImage, mMarkers, mEngine);
+		return mMarkers;
+	}
+}
@@ -0,0 +1,277 @@
+package com.example.simplewatershed.segmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The tiled watershed against the single-threaded engine it splits, on images whose object boundaries cross several tile seams.<br>
+ * Which side of an edge becomes the watershed line depends on which front reaches it first, and tiles change that timing. So the results
+ * must be the same on every pixel, except that the line may move by one pixel: a pixel may only differ if it's a line pixel in one result
+ * and next to the line or another region in the other result.
+ */
+public class TiledWatershedEngineTest {
+	private static final int TILE_SIZE = 128;
+	private static final int THREADS = 4;
+
+	private TiledWatershedEngine mTiledEngine;
+
+	@Before
+	public void setUp() {
+		mTiledEngine = new TiledWatershedEngine(new TiledWatershedEngine.Factory() {
+			@Override
+			public WatershedEngine newEngine() {
+				return new JavaWatershedEngine();
+			}
+		}, THREADS, TILE_SIZE, TiledWatershedEngine.DEFAULT_OVERLAP);
+	}
+
+	@After
+	public void tearDown() {
+		mTiledEngine.shutdown();
+	}
+
+	@Test
+	public void ellipsesAcrossSeams() {
+		TestImage image = new TestImage(640, 480, 1);
+		image.fillGradient();
+		// Each object spans 2 x 2 tiles or more, with its center off the seams
+		image.fillEllipse(150, 130, 110, 80, 200, 80, 40);
+		image.fillEllipse(420, 170, 130, 95, 40, 180, 90);
+		image.fillEllipse(300, 350, 170, 70, 70, 60, 210);
+		image.addNoise(6);
+
+		image.drawLine(100, 130, 200, 130, 1);
+		image.drawLine(340, 170, 500, 190, 3);
+		image.drawLine(180, 350, 420, 350, 4);
+		image.drawLine(20, 20, 620, 20, 2);
+		image.drawLine(20, 460, 620, 460, 2);
+		image.drawLine(600, 300, 600, 440, 2);
+		assertSameRegions(image);
+		assertEquals("Tiles were not kept", 0, mTiledEngine.getRepairCount());
+	}
+
+	@Test
+	public void ringAroundHole() {
+		TestImage image = new TestImage(512, 512, 2);
+		image.fillGradient();
+		// The hole is background inside the object, so the inner boundary crosses seams too
+		image.fillEllipse(256, 250, 190, 170, 190, 110, 50);
+		image.fillEllipse(240, 270, 90, 70, 90, 90, 110);
+		image.addNoise(8);
+
+		image.drawLine(120, 250, 140, 120, 1);
+		image.drawLine(380, 330, 400, 220, 1);
+		image.drawLine(220, 270, 260, 270, 2);
+		image.drawLine(10, 500, 500, 500, 2);
+		image.drawLine(500, 10, 500, 500, 2);
+		assertSameRegions(image);
+		assertEquals("Tiles were not kept", 0, mTiledEngine.getRepairCount());
+	}
+
+	@Test
+	public void thinBridge() {
+		TestImage image = new TestImage(640, 384, 4);
+		image.fillGradient();
+		// Only the left object is marked. The bridge is thinner than a block of the guide, and the right object spans tiles without markers.
+		image.fillEllipse(110, 190, 80, 120, 200, 90, 60);
+		image.fillEllipse(470, 190, 140, 150, 200, 90, 60);
+		image.fillRect(185, 189, 335, 191, 200, 90, 60);
+		image.addNoise(6);
+
+		image.drawLine(80, 190, 140, 190, 1);
+		image.drawLine(10, 10, 630, 10, 2);
+		image.drawLine(10, 374, 630, 374, 2);
+		assertSameRegions(image);
+		assertEquals("Tiles were not kept", 0, mTiledEngine.getRepairCount());
+	}
+
+	@Test
+	public void doorInThickWall() {
+		TestImage image = new TestImage(640, 512, 5);
+		image.fillRect(0, 0, 640, 512, 120, 120, 130);
+		// A chamber across several tiles without markers. Label 1 gets in through a door in the thick wall, which the guide can't see, and
+		// label 2 is behind a thin wall, which is weaker but still an edge in the guide.
+		image.fillRect(200, 100, 560, 104, 20, 20, 20);
+		image.fillRect(200, 416, 560, 420, 20, 20, 20);
+		image.fillRect(200, 100, 204, 420, 20, 20, 20);
+		image.fillRect(200, 300, 204, 302, 120, 120, 130);
+		image.fillRect(560, 0, 561, 512, 20, 20, 20);
+		image.addNoise(6);
+
+		image.drawLine(40, 300, 120, 300, 1);
+		image.drawLine(600, 40, 600, 470, 2);
+		assertSameRegions(image);
+		assertEquals("The wrong guide was not found", 1, mTiledEngine.getRepairCount());
+		// The chamber spans most of the image, so the repair is not worth it
+		assertEquals("The whole image was not flooded again", 1, mTiledEngine.getFallbackCount());
+	}
+
+	@Test
+	public void doorInSmallChamber() {
+		TestImage image = new TestImage(2048, 1536, 6);
+		image.fillRect(0, 0, 2048, 1536, 120, 120, 130);
+		// The same door as doorInThickWall, in a chamber of a few tiles in a large image. Label 2 is outside the block of failed tiles, so the
+		// block grows to it, but not over the whole image.
+		image.fillRect(424, 296, 1192, 300, 20, 20, 20);
+		image.fillRect(424, 804, 1192, 808, 20, 20, 20);
+		image.fillRect(424, 296, 428, 808, 20, 20, 20);
+		image.fillRect(424, 420, 428, 422, 120, 120, 130);
+		image.fillRect(1192, 0, 1193, 1536, 20, 20, 20);
+		image.addNoise(6);
+
+		image.drawLine(400, 40, 400, 1490, 1);
+		image.drawLine(1330, 40, 1330, 1490, 2);
+		assertSameRegions(image);
+		assertEquals("The wrong guide was not found", 1, mTiledEngine.getRepairCount());
+		assertEquals("The whole image was flooded again", 0, mTiledEngine.getFallbackCount());
+	}
+
+	private void assertSameRegions(TestImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] expected = image.getMarkers().clone();
+		new JavaWatershedEngine().watershed(image.getPixels(), width, height, 3, expected);
+		int[] actual = image.getMarkers().clone();
+		mTiledEngine.watershed(image.getPixels(), width, height, 3, actual);
+
+		int lines = 0;
+		int moved = 0;
+		int different = 0;
+		for (int y = 1; y < (height - 1); y++) {
+			for (int x = 1; x < (width - 1); x++) {
+				int p = (y * width) + x;
+				if (expected[p] == WatershedEngine.BOUNDARY) {
+					lines++;
+				}
+				if (expected[p] == actual[p]) {
+					continue;
+				}
+				if ((expected[p] == WatershedEngine.BOUNDARY) && isNearLine(actual, width, p)) {
+					moved++;
+				} else if ((actual[p] == WatershedEngine.BOUNDARY) && isNearLine(expected, width, p)) {
+					moved++;
+				} else {
+					different++;
+				}
+			}
+		}
+		assertTrue("No line was found", lines > 0);
+		assertTrue("The line moved on " + moved + " of " + lines + " pixels", moved <= lines);
+		assertEquals("Pixels labelled differently", 0, different);
+	}
+
+	/**
+	 * Whether the pixel or any of its 8 neighbors is a line pixel or in another region
+	 */
+	private static boolean isNearLine(int[] labels, int width, int p) {
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				int label = labels[p + (dy * width) + dx];
+				if ((label == WatershedEngine.BOUNDARY) || (label != labels[p])) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A 3 channel image with int markers of the same size
+	 */
+	private static class TestImage {
+		private final int mWidth;
+		private final int mHeight;
+		private final byte[] mPixels;
+		private final int[] mMarkers;
+		private final Random mRandom;
+
+		TestImage(int width, int height, long seed) {
+			mWidth = width;
+			mHeight = height;
+			mPixels = new byte[width * height * 3];
+			mMarkers = new int[width * height];
+			mRandom = new Random(seed);
+		}
+
+		int getWidth() {
+			return mWidth;
+		}
+
+		int getHeight() {
+			return mHeight;
+		}
+
+		byte[] getPixels() {
+			return mPixels;
+		}
+
+		int[] getMarkers() {
+			return mMarkers;
+		}
+
+		void fillGradient() {
+			for (int y = 0; y < mHeight; y++) {
+				for (int x = 0; x < mWidth; x++) {
+					int shade = 60 + (((x + y) * 100) / (mWidth + mHeight));
+					set(x, y, shade, shade, shade + 20);
+				}
+			}
+		}
+
+		void fillEllipse(int cx, int cy, int rx, int ry, int r, int g, int b) {
+			for (int y = Math.max(cy - ry, 0); y <= Math.min(cy + ry, mHeight - 1); y++) {
+				for (int x = Math.max(cx - rx, 0); x <= Math.min(cx + rx, mWidth - 1); x++) {
+					double dx = (double) (x - cx) / rx;
+					double dy = (double) (y - cy) / ry;
+					if (((dx * dx) + (dy * dy)) <= 1) {
+						set(x, y, r, g, b);
+					}
+				}
+			}
+		}
+
+		void fillRect(int left, int top, int right, int bottom, int r, int g, int b) {
+			for (int y = top; y < bottom; y++) {
+				for (int x = left; x < right; x++) {
+					set(x, y, r, g, b);
+				}
+			}
+		}
+
+		void addNoise(int amplitude) {
+			for (int i = 0; i < mPixels.length; i++) {
+				int value = ((mPixels[i] & 0xff) + mRandom.nextInt((amplitude * 2) + 1)) - amplitude;
+				mPixels[i] = (byte) Math.max(0, Math.min(255, value));
+			}
+		}
+
+		/**
+		 * Draw a 5 pixels thick line of the label into markers
+		 */
+		void drawLine(int x0, int y0, int x1, int y1, int label) {
+			int steps = Math.max(Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0)), 1);
+			for (int s = 0; s <= steps; s++) {
+				int x = x0 + (((x1 - x0) * s) / steps);
+				int y = y0 + (((y1 - y0) * s) / steps);
+				for (int dy = -2; dy <= 2; dy++) {
+					for (int dx = -2; dx <= 2; dx++) {
+						mMarkers[((y + dy) * mWidth) + x + dx] = label;
+					}
+				}
+			}
+		}
+
+		private void set(int x, int y, int r, int g, int b) {
+			int p = ((y * mWidth) + x) * 3;
+			mPixels[p] = (byte) r;
+			mPixels[p + 1] = (byte) g;
+			mPixels[p + 2] = (byte) b;
+		}
+	}
+}
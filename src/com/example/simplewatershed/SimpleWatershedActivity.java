@@ -1,21 +1,27 @@
 package com.example.simplewatershed;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.File;
 
 import org.opencv.android.OpenCVLoader;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.example.simplewatershed.util.BitmapLoader;
+import com.example.simplewatershed.util.BitmapPool;
+import com.example.simplewatershed.util.Metrics;
+import com.example.simplewatershed.util.Util;
 import com.example.simplewatershed.view.imagecontainer.ImageContainer;
+import com.example.simplewatershed.view.imagecontainer.SessionFile;
 
 public class SimpleWatershedActivity extends Activity {
 	private static final int IMAGE_LOAD = 100;
+	private static final String SESSION_FILE = "session.bin";
+	private static final long METRICS_DUMP_PERIOD = 30000;
 	/**
 	 * private Load openCV library
 	 */
@@ -30,7 +36,37 @@ public class SimpleWatershedActivity extends Activity {
 		setContentView(R.layout.activity_simple_watershed);
 
 		// This is needed to set the reference of base image in container
-		((ImageContainer) findViewById(R.id.base_image_container)).initView();
+		ImageContainer imageContainer = (ImageContainer) findViewById(R.id.base_image_container);
+		imageContainer.initView();
+
+		// Continue the work from the last session, if the app was killed
+		File sessionFile = new File(getFilesDir(), SESSION_FILE);
+		if (sessionFile.exists()) {
+			imageContainer.restoreSession(sessionFile);
+		}
+
+		// Log where the time goes while debugging
+		if (Util.LOG) {
+			Metrics.startDump(METRICS_DUMP_PERIOD);
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		File sessionFile = new File(getFilesDir(), SESSION_FILE);
+		if (isFinishing()) {
+			// Left by the user, the session should not come back on the next start
+			SessionFile.delete(sessionFile);
+		} else {
+			((ImageContainer) findViewById(R.id.base_image_container)).saveSession(sessionFile);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		BitmapPool.getInstance().clear();
 	}
 
 	@Override
@@ -62,14 +98,19 @@ public class SimpleWatershedActivity extends Activity {
 					// PickerActivity is finished with nothing
 					return;
 				}
-				try {
-					((ImageContainer) findViewById(R.id.base_image_container)).setImage(MediaStore.Images.Media.getBitmap(this.getContentResolver(),
-							data.getData()));
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				// Decode off the UI thread, straight to the size of container
+				final ImageContainer imageContainer = (ImageContainer) findViewById(R.id.base_image_container);
+				BitmapLoader.load(getContentResolver(), data.getData(), imageContainer.getMaxImageWidth(), imageContainer.getMaxImageHeight(),
+						new BitmapLoader.OnLoadedListener() {
+							@Override
+							public void onLoaded(Bitmap bitmap) {
+								if ((bitmap != null) && !isFinishing()) {
+									// The saved session belongs to the last image
+									SessionFile.delete(new File(getFilesDir(), SESSION_FILE));
+									imageContainer.setImage(bitmap);
+								}
+							}
+						});
 			}
 			break;
 		}
@@ -0,0 +1,258 @@
+package com.example.simplewatershed.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+import com.example.simplewatershed.segmentation.TiledWatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedEngine;
+
+/**
+ * Cut out all images of a directory with their recorded strokes, on a bounded pool of workers.<br>
+ * Each image has a sidecar file named image + {@link #STROKES_SUFFIX}, one stroke per line as "fg|bg thickness x,y x,y ...", lines starting
+ * with # are ignored. Images without one are skipped. The mask of each image is written to the output directory as image +
+ * {@link #MASK_SUFFIX}.<br>
+ * Only a few images are queued ahead of the workers, so the memory stays bounded for directories of any size.<br>
+ * Run from the command line with {@link #main(String[])}, e.g. from the benchmark module:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.example.simplewatershed.pipeline.BatchRunner &lt;dir&gt; [threads] [engine]
+ * </pre>
+ */
+public class BatchRunner {
+	public static final String STROKES_SUFFIX = ".strokes";
+	public static final String MASK_SUFFIX = ".mask.png";
+	public static final String OUTPUT_DIR_NAME = "masks";
+
+	private final WatershedConfig mConfig;
+	private final int mThreads;
+
+	/**
+	 * @param config
+	 *            The parameters of watershed, copied for each image
+	 * @param threads
+	 *            The number of workers
+	 */
+	public BatchRunner(WatershedConfig config, int threads) {
+		mConfig = new WatershedConfig(config);
+		mThreads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Cut out the directory with the default config, write masks into its {@link #OUTPUT_DIR_NAME} and print the report.<br>
+	 * Engines other than OpenCV's are shared by the workers and flood one image at a time, so they run with one worker. A tiled engine floods
+	 * the tiles of that image on the threads instead.
+	 *
+	 * @param args
+	 *            The directory, and optionally the number of threads, which is the number of processors by default, and the name of the
+	 *            engine for {@link WatershedConfig#newEngine(String, int)}, {@link WatershedConfig#ENGINE_OPENCV} by default
+	 */
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 3)) {
+			System.err.println("Usage: BatchRunner <dir> [threads] [opencv|java|tiled-opencv|tiled-java]");
+			System.exit(2);
+		}
+		File inputDir = new File(args[0]);
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		String engineName = (args.length > 2) ? args[2] : WatershedConfig.ENGINE_OPENCV;
+		loadNativeLibrary();
+
+		WatershedConfig config = new WatershedConfig();
+		WatershedEngine engine = WatershedConfig.newEngine(engineName, threads);
+		config.setEngine(engine);
+		int workers = WatershedConfig.ENGINE_OPENCV.equals(engineName) ? threads : 1;
+		try {
+			Report report = new BatchRunner(config, workers).run(inputDir, new File(inputDir, OUTPUT_DIR_NAME));
+			System.out.println(report);
+		} finally {
+			if (engine instanceof TiledWatershedEngine) {
+				((TiledWatershedEngine) engine).shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Load OpenCV from the desktop jar if it's on the class path, or from java.library.path.
+	 */
+	private static void loadNativeLibrary() {
+		try {
+			// By reflection, so the pipeline doesn't depend on the desktop jar
+			Class.forName("nu.pattern.OpenCV").getMethod("loadLocally").invoke(null);
+		} catch (Exception e) {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		}
+	}
+
+	/**
+	 * Process the directory, and wait until all images are done.
+	 *
+	 * @param inputDir
+	 *            The directory of images and their stroke files
+	 * @param outputDir
+	 *            The directory to write masks, created if not exists
+	 * @return The report of the run
+	 */
+	public Report run(File inputDir, final File outputDir) throws IOException, InterruptedException {
+		File[] files = inputDir.listFiles();
+		if (files == null) {
+			throw new IOException("Can't list " + inputDir);
+		}
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Can't create " + outputDir);
+		}
+
+		// The caller runs the task itself when the queue is full, which also throttles the listing
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(mThreads, mThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+				mThreads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+		final AtomicInteger doneCount = new AtomicInteger();
+		final AtomicInteger failedCount = new AtomicInteger();
+		long startTime = System.nanoTime();
+		for (final File file : files) {
+			final File strokesFile = new File(file.getPath() + STROKES_SUFFIX);
+			if (!file.isFile() || !strokesFile.isFile()) {
+				continue;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process(file, strokesFile, new File(outputDir, file.getName() + MASK_SUFFIX));
+						doneCount.incrementAndGet();
+					} catch (Exception e) {
+						e.printStackTrace();
+						failedCount.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return new Report(doneCount.get(), failedCount.get(), System.nanoTime() - startTime);
+	}
+
+	private void process(File imageFile, File strokesFile, File maskFile) throws IOException {
+		List<Stroke> strokes = readStrokes(strokesFile);
+		Mat source = Highgui.imread(imageFile.getPath());
+		if ((source == null) || source.empty()) {
+			throw new IOException("Can't decode " + imageFile);
+		}
+		// A pipeline per image, so workers don't share one
+		SegmentationPipeline.Result result = new SegmentationPipeline(mConfig).run(source, strokes);
+		source.release();
+		boolean written = Highgui.imwrite(maskFile.getPath(), result.getMask());
+		result.release();
+		if (!written) {
+			throw new IOException("Can't write " + maskFile);
+		}
+	}
+
+	/**
+	 * Read the strokes of an image.
+	 *
+	 * @param file
+	 *            The stroke file, see {@link BatchRunner} for the format
+	 */
+	public static List<Stroke> readStrokes(File file) throws IOException {
+		List<Stroke> strokes = new ArrayList<Stroke>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					strokes.add(parseStroke(line));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return strokes;
+	}
+
+	private static Stroke parseStroke(String line) {
+		String[] fields = line.split("\\s+");
+		if (fields.length < 3) {
+			throw new IllegalArgumentException("Expect a label, a thickness and points");
+		}
+		int label;
+		if (fields[0].equalsIgnoreCase("fg")) {
+			label = Stroke.FOREGROUND;
+		} else if (fields[0].equalsIgnoreCase("bg")) {
+			label = Stroke.BACKGROUND;
+		} else {
+			throw new IllegalArgumentException("Unknown label: " + fields[0]);
+		}
+		int thickness = Integer.parseInt(fields[1]);
+		int[] points = new int[(fields.length - 2) * 2];
+		for (int i = 2; i < fields.length; i++) {
+			int comma = fields[i].indexOf(',');
+			if (comma < 0) {
+				throw new IllegalArgumentException("Expect x,y: " + fields[i]);
+			}
+			points[(i - 2) * 2] = Integer.parseInt(fields[i].substring(0, comma));
+			points[((i - 2) * 2) + 1] = Integer.parseInt(fields[i].substring(comma + 1));
+		}
+		return new Stroke(label, thickness, points);
+	}
+
+	/**
+	 * The result of a {@link BatchRunner#run(File, File)}.
+	 */
+	public static class Report {
+		private final int mImageCount;
+		private final int mFailedCount;
+		private final long mNanos;
+
+		private Report(int imageCount, int failedCount, long nanos) {
+			mImageCount = imageCount;
+			mFailedCount = failedCount;
+			mNanos = nanos;
+		}
+
+		/**
+		 * Get the number of images cut out successfully
+		 */
+		public int getImageCount() {
+			return mImageCount;
+		}
+
+		public int getFailedCount() {
+			return mFailedCount;
+		}
+
+		public double getSeconds() {
+			return mNanos / 1e9;
+		}
+
+		/**
+		 * Get the throughput of successful images over the wall time of run
+		 */
+		public double getImagesPerSecond() {
+			return mNanos > 0 ? mImageCount / getSeconds() : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d images, %d failed, %.2fs, %.2f images/s", mImageCount, mFailedCount, getSeconds(), getImagesPerSecond());
+		}
+	}
+}
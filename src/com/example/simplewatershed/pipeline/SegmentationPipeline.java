@@ -0,0 +1,138 @@
+package com.example.simplewatershed.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import com.example.simplewatershed.segmentation.MaskBounds;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * The cut-out of ImageContainer without any View: recorded strokes are applied to a source image in order, the same as they were drawn.<br>
+ * A foreground stroke is segmented on its own and added to the cutout, a background stroke erases the cutout under it.<br>
+ * A pipeline keeps no state between {@link #run(Mat, List)} calls, but should not be shared between threads since the engine of config may
+ * be.
+ */
+public class SegmentationPipeline {
+	private static final Scalar sCutout = new Scalar(255.0);
+
+	private final WatershedConfig mConfig;
+
+	/**
+	 * @param config
+	 *            The parameters of watershed, copied. The thickness is taken from each stroke.
+	 */
+	public SegmentationPipeline(WatershedConfig config) {
+		mConfig = new WatershedConfig(config);
+	}
+
+	/**
+	 * Apply the strokes to the image.
+	 *
+	 * @param source
+	 *            The 3 channel source image, will not be changed
+	 * @param strokes
+	 *            The strokes in the order they were drawn
+	 * @return The result, the caller should release it.
+	 */
+	public Result run(Mat source, List<Stroke> strokes) {
+		int width = source.width();
+		int height = source.height();
+		Mat cutout = new Mat(source.size(), CvType.CV_8UC1, WatershedSegmenter.sBlack);
+		Mat markers = new Mat(source.size(), CvType.CV_8UC1, WatershedSegmenter.sBlack);
+		MaskBounds cutoutBounds = new MaskBounds();
+		cutoutBounds.reset(width, height);
+
+		// The downscaled source for pyramid mode, built once for all strokes
+		Mat coarse = null;
+		for (int level = 0; level < mConfig.getPyramidLevel(); level++) {
+			Mat next = new Mat();
+			Imgproc.pyrDown(coarse == null ? source : coarse, next);
+			if (coarse != null) {
+				coarse.release();
+			}
+			coarse = next;
+		}
+
+		WatershedConfig config = new WatershedConfig(mConfig);
+		List<MatOfPoint> contours = new ArrayList<MatOfPoint>(1);
+		for (Stroke stroke : strokes) {
+			Rect strokeBounds = stroke.getBounds(width, height);
+			if (strokeBounds.width == 0 || strokeBounds.height == 0) {
+				// Nothing of the stroke is inside the image, no marker and no cut
+				continue;
+			}
+			contours.add(stroke.toMatOfPoint());
+			if (stroke.getLabel() == Stroke.FOREGROUND) {
+				// Each stroke is segmented with its own markers, as the container does after each stroke
+				Core.polylines(markers, contours, false, WatershedSegmenter.sForeground, stroke.getThickness());
+				config.setThickness(stroke.getThickness());
+				Rect bounds = new Rect();
+				Mat foreground = WatershedSegmenter.segment(source, coarse, markers, config, bounds, null);
+				cutout.setTo(sCutout, foreground);
+				foreground.release();
+				cutoutBounds.update(cutout, bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height);
+
+				Mat strokeMarkers = markers.submat(strokeBounds);
+				strokeMarkers.setTo(WatershedSegmenter.sBlack);
+				strokeMarkers.release();
+			} else {
+				Core.polylines(cutout, contours, false, WatershedSegmenter.sBlack, stroke.getThickness());
+				cutoutBounds.update(cutout, strokeBounds.x, strokeBounds.y, strokeBounds.x + strokeBounds.width,
+						strokeBounds.y + strokeBounds.height);
+			}
+			contours.get(0).release();
+			contours.clear();
+		}
+
+		Result result = new Result(cutout, cutoutBounds.getBounds());
+		markers.release();
+		cutoutBounds.release();
+		if (coarse != null) {
+			coarse.release();
+		}
+		return result;
+	}
+
+	/**
+	 * The cutout of a {@link SegmentationPipeline} run.
+	 */
+	public static class Result {
+		private Mat mMask;
+		private final Rect mBounds;
+
+		private Result(Mat mask, Rect bounds) {
+			mMask = mask;
+			mBounds = bounds;
+		}
+
+		/**
+		 * Get the 1 channel mask, 255 for the cutout and 0 for others
+		 */
+		public Mat getMask() {
+			return mMask;
+		}
+
+		/**
+		 * Get the bounds of the cutout, null if nothing is cut out
+		 */
+		public Rect getBounds() {
+			return mBounds;
+		}
+
+		public void release() {
+			if (mMask != null) {
+				mMask.release();
+				mMask = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.example.simplewatershed.pipeline;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * A recorded marker stroke: a polyline with the thickness and label it was drawn with.
+ */
+public class Stroke {
+	/** Marks the object to cut out, flooded by watershed */
+	public static final int FOREGROUND = 1;
+	/** Erases the cutout under the stroke, the same as the eraser */
+	public static final int BACKGROUND = 2;
+
+	private final int mLabel;
+	private final int mThickness;
+	private final int[] mPoints;
+
+	/**
+	 * @param label
+	 *            {@link #FOREGROUND} or {@link #BACKGROUND}
+	 * @param thickness
+	 *            The thickness of stroke in image pixels
+	 * @param points
+	 *            The polyline as x, y pairs in image pixels, at least one point
+	 */
+	public Stroke(int label, int thickness, int[] points) {
+		if ((label != FOREGROUND) && (label != BACKGROUND)) {
+			throw new IllegalArgumentException("Unknown label: " + label);
+		}
+		if ((points.length < 2) || ((points.length % 2) != 0)) {
+			throw new IllegalArgumentException("Points should be x, y pairs");
+		}
+		mLabel = label;
+		mThickness = thickness;
+		mPoints = points;
+	}
+
+	public int getLabel() {
+		return mLabel;
+	}
+
+	public int getThickness() {
+		return mThickness;
+	}
+
+	public int[] getPoints() {
+		return mPoints;
+	}
+
+	/**
+	 * Get the polyline as a contour for Core.polylines(), the caller should release it.
+	 */
+	public MatOfPoint toMatOfPoint() {
+		Point[] points = new Point[mPoints.length / 2];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new Point(mPoints[i * 2], mPoints[(i * 2) + 1]);
+		}
+		return new MatOfPoint(points);
+	}
+
+	/**
+	 * Get the area covered by the stroke, including its thickness, clamped into the image. Empty if the stroke is outside the image.
+	 */
+	public Rect getBounds(int width, int height) {
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (int i = 0; i < mPoints.length; i += 2) {
+			left = Math.min(left, mPoints[i]);
+			top = Math.min(top, mPoints[i + 1]);
+			right = Math.max(right, mPoints[i]);
+			bottom = Math.max(bottom, mPoints[i + 1]);
+		}
+		int space = (mThickness / 2) + 1;
+		left = Math.min(Math.max(left - space, 0), width);
+		top = Math.min(Math.max(top - space, 0), height);
+		right = Math.max(Math.min(right + space + 1, width), 0);
+		bottom = Math.max(Math.min(bottom + space + 1, height), 0);
+		return new Rect(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
+	}
+}
@@ -0,0 +1,116 @@
+package com.example.simplewatershed.segmentation;
+
+/**
+ * What the background bounds search did for one watershed job: the margin, foreground area and time of each iteration.<br>
+ * Filled by {@link WatershedSegmenter#watershed}, for tuning {@link WatershedConfig#setGrowth(WatershedConfig.Growth)} and its limits on a
+ * device.
+ */
+public class GrowthStats {
+	private int mIterations;
+	private double[] mMargins;
+	private int[] mAreas;
+	private long[] mNanos;
+	private boolean mConverged;
+
+	public GrowthStats() {
+		mMargins = new double[4];
+		mAreas = new int[4];
+		mNanos = new long[4];
+	}
+
+	/**
+	 * Clear the stats, so the object can be reused for the next job.
+	 */
+	public void reset() {
+		mIterations = 0;
+		mConverged = false;
+	}
+
+	/**
+	 * Append one iteration.
+	 *
+	 * @param margin
+	 *            The space between the foreground bounds and the background rectangle
+	 * @param area
+	 *            The number of foreground pixels found with the margin
+	 * @param nanos
+	 *            The time of the iteration, including drawing markers and counting
+	 */
+	public void add(double margin, int area, long nanos) {
+		if (mIterations == mMargins.length) {
+			int capacity = mIterations * 2;
+			mMargins = copyOf(mMargins, capacity);
+			mAreas = copyOf(mAreas, capacity);
+			mNanos = copyOf(mNanos, capacity);
+		}
+		mMargins[mIterations] = margin;
+		mAreas[mIterations] = area;
+		mNanos[mIterations] = nanos;
+		mIterations++;
+	}
+
+	public int getIterations() {
+		return mIterations;
+	}
+
+	public double getMargin(int iteration) {
+		return mMargins[iteration];
+	}
+
+	public int getArea(int iteration) {
+		return mAreas[iteration];
+	}
+
+	public long getNanos(int iteration) {
+		return mNanos[iteration];
+	}
+
+	public long getTotalNanos() {
+		long total = 0;
+		for (int i = 0; i < mIterations; i++) {
+			total += mNanos[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Whether the search stopped because the area was stable, false if it stopped at the iteration cap.
+	 */
+	public boolean isConverged() {
+		return mConverged;
+	}
+
+	public void setConverged(boolean converged) {
+		mConverged = converged;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Iterations: ").append(mIterations).append(", converged: ").append(mConverged).append(", total: ")
+				.append(getTotalNanos() / 1000000).append("ms");
+		for (int i = 0; i < mIterations; i++) {
+			builder.append("\n  ").append(i).append(": margin ").append((int) mMargins[i]).append(", area ").append(mAreas[i]).append(", ")
+					.append(mNanos[i] / 1000).append("us");
+		}
+		return builder.toString();
+	}
+
+	private static double[] copyOf(double[] array, int length) {
+		double[] copy = new double[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	private static long[] copyOf(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+}
@@ -0,0 +1,163 @@
+package com.example.simplewatershed.segmentation;
+
+/**
+ * Pure Java Meyer flooding watershed over primitive arrays, no native code and no boxing.<br>
+ * Pixels are flooded in order of an 8-bit priority through a bucketed queue: 256 FIFO buckets linked through one int array, so push and pop
+ * are O(1) and nothing is allocated per pixel.
+ * <ul>
+ * <li>For 3 channel images, the priority is the max channel difference between a pixel and its flooded neighbor, which gives the same result
+ * as OpenCV's Imgproc.watershed.</li>
+ * <li>For 1 channel images, the image is treated as a relief such as gradient magnitude, and the priority is the value of the pixel itself.</li>
+ * </ul>
+ * Buffers are reused across calls, calls are serialized on the engine.
+ */
+public class JavaWatershedEngine implements WatershedEngine {
+	private static final int IN_QUEUE = -2;
+	private static final int BUCKETS = 256;
+
+	// The next pixel in the same bucket, indexed by pixel
+	private int[] mNext;
+	private final int[] mHeads = new int[BUCKETS];
+	private final int[] mTails = new int[BUCKETS];
+
+	@Override
+	public synchronized void watershed(byte[] image, int width, int height, int channels, int[] markers) {
+		int size = width * height;
+		if ((mNext == null) || (mNext.length < size)) {
+			mNext = new int[size];
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			mHeads[i] = mTails[i] = -1;
+		}
+
+		// The outer frame is the boundary
+		for (int x = 0; x < width; x++) {
+			markers[x] = BOUNDARY;
+			markers[((height - 1) * width) + x] = BOUNDARY;
+		}
+		for (int y = 0; y < height; y++) {
+			markers[y * width] = BOUNDARY;
+			markers[(y * width) + width - 1] = BOUNDARY;
+		}
+
+		// Push unknown pixels next to a region, with the lowest priority among its labelled neighbors
+		int active = BUCKETS;
+		for (int y = 1; y < (height - 1); y++) {
+			for (int x = 1; x < (width - 1); x++) {
+				int p = (y * width) + x;
+				if (markers[p] != UNKNOWN) {
+					continue;
+				}
+				int priority = BUCKETS;
+				if (markers[p - 1] > 0) {
+					priority = Math.min(priority, priority(image, channels, p, p - 1));
+				}
+				if (markers[p + 1] > 0) {
+					priority = Math.min(priority, priority(image, channels, p, p + 1));
+				}
+				if (markers[p - width] > 0) {
+					priority = Math.min(priority, priority(image, channels, p, p - width));
+				}
+				if (markers[p + width] > 0) {
+					priority = Math.min(priority, priority(image, channels, p, p + width));
+				}
+				if (priority < BUCKETS) {
+					push(priority, p);
+					markers[p] = IN_QUEUE;
+					active = Math.min(active, priority);
+				}
+			}
+		}
+
+		// Flood in order of priority
+		while (true) {
+			while ((active < BUCKETS) && (mHeads[active] == -1)) {
+				active++;
+			}
+			if (active == BUCKETS) {
+				break;
+			}
+			int p = pop(active);
+
+			// Take the label from flooded neighbors, or mark as boundary if they disagree
+			int label = UNKNOWN;
+			label = merge(label, markers[p - 1]);
+			label = merge(label, markers[p + 1]);
+			label = merge(label, markers[p - width]);
+			label = merge(label, markers[p + width]);
+			markers[p] = label;
+			if (label == BOUNDARY) {
+				continue;
+			}
+
+			// Push unknown neighbors
+			active = pushNeighbor(image, channels, markers, p, p - 1, active);
+			active = pushNeighbor(image, channels, markers, p, p + 1, active);
+			active = pushNeighbor(image, channels, markers, p, p - width, active);
+			active = pushNeighbor(image, channels, markers, p, p + width, active);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "java";
+	}
+
+	private int pushNeighbor(byte[] image, int channels, int[] markers, int p, int q, int active) {
+		if (markers[q] != UNKNOWN) {
+			return active;
+		}
+		int priority = priority(image, channels, q, p);
+		push(priority, q);
+		markers[q] = IN_QUEUE;
+		return Math.min(active, priority);
+	}
+
+	private static int merge(int label, int neighbor) {
+		if (neighbor <= 0) {
+			return label;
+		}
+		if ((label == UNKNOWN) || (label == neighbor)) {
+			return neighbor;
+		}
+		return BOUNDARY;
+	}
+
+	/**
+	 * Get the priority of pixel p which is reached from the flooded pixel q
+	 */
+	private static int priority(byte[] image, int channels, int p, int q) {
+		if (channels == 1) {
+			return image[p] & 0xff;
+		}
+		int max = 0;
+		int a = p * channels;
+		int b = q * channels;
+		for (int c = 0; c < channels; c++) {
+			int diff = Math.abs((image[a + c] & 0xff) - (image[b + c] & 0xff));
+			if (diff > max) {
+				max = diff;
+			}
+		}
+		return max;
+	}
+
+	private void push(int priority, int p) {
+		mNext[p] = -1;
+		if (mTails[priority] == -1) {
+			mHeads[priority] = p;
+		} else {
+			mNext[mTails[priority]] = p;
+		}
+		mTails[priority] = p;
+	}
+
+	private int pop(int priority) {
+		int p = mHeads[priority];
+		mHeads[priority] = mNext[p];
+		if (mHeads[priority] == -1) {
+			mTails[priority] = -1;
+		}
+		return p;
+	}
+}
@@ -0,0 +1,171 @@
+package com.example.simplewatershed.segmentation;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * The running bounding box of non-zero pixels in a layer, for 4 channel layers only the alpha channel is checked.<br>
+ * The layer is split into tiles which keep their own bounding box. After an area of the layer is changed, call
+ * {@link #update(Mat, int, int, int, int)} with that area, only the tiles it touches are scanned again. {@link #getBounds()} is O(1) while
+ * nothing changed, otherwise it merges the boxes of tiles, never the pixels.
+ */
+public class MaskBounds {
+	public static final int TILE_SIZE = 64;
+
+	private int mWidth;
+	private int mHeight;
+	private int mTilesX;
+	private int mTilesY;
+	// The bounding box of each tile in layer coordinates, right and bottom are exclusive. Empty if left >= right.
+	private int[] mTileLeft;
+	private int[] mTileTop;
+	private int[] mTileRight;
+	private int[] mTileBottom;
+
+	// The merged bounding box, null if the layer is empty
+	private Rect mBounds;
+	private boolean mStale;
+
+	// Scratch buffers for scanning, grown when necessary
+	private Mat mChannel;
+	private byte[] mBuffer;
+
+	public MaskBounds() {
+		mChannel = new Mat();
+	}
+
+	/**
+	 * Bind to a new layer size, the layer is considered empty.
+	 */
+	public void reset(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		mTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		int tiles = mTilesX * mTilesY;
+		mTileLeft = new int[tiles];
+		mTileTop = new int[tiles];
+		mTileRight = new int[tiles];
+		mTileBottom = new int[tiles];
+		mBounds = null;
+		mStale = false;
+	}
+
+	/**
+	 * Scan the tiles in the changed area of layer again.
+	 *
+	 * @param layer
+	 *            The layer with the size given to {@link #reset(int, int)}, 1 or 4 channels
+	 */
+	public void update(Mat layer, int left, int top, int right, int bottom) {
+		if (mTileLeft == null) {
+			return;
+		}
+		int fromX = Math.max(left, 0) / TILE_SIZE;
+		int fromY = Math.max(top, 0) / TILE_SIZE;
+		int toX = Math.min((Math.max(right, 0) - 1) / TILE_SIZE, mTilesX - 1);
+		int toY = Math.min((Math.max(bottom, 0) - 1) / TILE_SIZE, mTilesY - 1);
+		if ((fromX > toX) || (fromY > toY)) {
+			return;
+		}
+
+		// Copy the checked channel of the tile-aligned area at once
+		int areaLeft = fromX * TILE_SIZE;
+		int areaTop = fromY * TILE_SIZE;
+		int areaRight = Math.min((toX + 1) * TILE_SIZE, mWidth);
+		int areaBottom = Math.min((toY + 1) * TILE_SIZE, mHeight);
+		int areaWidth = areaRight - areaLeft;
+		Mat area = layer.submat(areaTop, areaBottom, areaLeft, areaRight);
+		if (layer.channels() == 1) {
+			area.copyTo(mChannel);
+		} else {
+			Core.extractChannel(area, mChannel, layer.channels() - 1);
+		}
+		area.release();
+		int length = areaWidth * (areaBottom - areaTop);
+		if ((mBuffer == null) || (mBuffer.length < length)) {
+			mBuffer = new byte[length];
+		}
+		mChannel.get(0, 0, mBuffer);
+
+		for (int ty = fromY; ty <= toY; ty++) {
+			for (int tx = fromX; tx <= toX; tx++) {
+				scanTile(tx, ty, areaLeft, areaTop, areaWidth);
+			}
+		}
+		mStale = true;
+	}
+
+	/**
+	 * Get the bounding box of non-zero pixels.
+	 *
+	 * @return A new {@link Rect}, null if the layer is empty.
+	 */
+	public Rect getBounds() {
+		if (mStale) {
+			merge();
+			mStale = false;
+		}
+		return (mBounds == null) ? null : mBounds.clone();
+	}
+
+	public boolean isEmpty() {
+		return getBounds() == null;
+	}
+
+	public void release() {
+		mChannel.release();
+		mBuffer = null;
+		mTileLeft = mTileTop = mTileRight = mTileBottom = null;
+		mBounds = null;
+	}
+
+	private void scanTile(int tx, int ty, int areaLeft, int areaTop, int areaWidth) {
+		int left = tx * TILE_SIZE;
+		int top = ty * TILE_SIZE;
+		int right = Math.min(left + TILE_SIZE, mWidth);
+		int bottom = Math.min(top + TILE_SIZE, mHeight);
+		int minX = right;
+		int minY = bottom;
+		int maxX = left;
+		int maxY = top;
+		for (int y = top; y < bottom; y++) {
+			int row = ((y - areaTop) * areaWidth) - areaLeft;
+			for (int x = left; x < right; x++) {
+				if (mBuffer[row + x] != 0) {
+					if (x < minX) {
+						minX = x;
+					}
+					if (x >= maxX) {
+						maxX = x + 1;
+					}
+					minY = Math.min(minY, y);
+					maxY = y + 1;
+				}
+			}
+		}
+		int index = (ty * mTilesX) + tx;
+		mTileLeft[index] = minX;
+		mTileTop[index] = minY;
+		mTileRight[index] = maxX;
+		mTileBottom[index] = maxY;
+	}
+
+	private void merge() {
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (int i = 0; i < mTileLeft.length; i++) {
+			if (mTileLeft[i] >= mTileRight[i]) {
+				continue;
+			}
+			left = Math.min(left, mTileLeft[i]);
+			top = Math.min(top, mTileTop[i]);
+			right = Math.max(right, mTileRight[i]);
+			bottom = Math.max(bottom, mTileBottom[i]);
+		}
+		mBounds = (left > right) ? null : new Rect(left, top, right - left, bottom - top);
+	}
+}
@@ -0,0 +1,181 @@
+package com.example.simplewatershed.segmentation;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Scratch mats of a container, kept by size and type and handed out again for the next stroke, so segmenting a stroke makes no native
+ * allocation once the arena is warm.<br>
+ * The contents of an obtained mat are undefined. Mats are given back by {@link #recycle(Mat)}, from any thread. Only the mats handed out since
+ * the last {@link #clear()} are kept, others are released, so a mat of the last image never comes back.<br>
+ * <strong>Note:</strong> Always call {@link #release()} when the container is destroyed, mats recycled after it are released directly.
+ */
+public class MatArena {
+	private final Map<Key, LinkedList<Mat>> mFreeMats = new HashMap<Key, LinkedList<Mat>>();
+	// Mats handed out since the last clear(), Mat doesn't override equals() so this is by identity anyway
+	private final Map<Mat, Key> mHandedOutMats = new IdentityHashMap<Mat, Key>();
+	private boolean mReleased;
+
+	// Native bytes of the mats made by the arena, both handed out and free
+	private long mBytes;
+	private long mHighWaterBytes;
+	private long mAllocationCount;
+	private long mReuseCount;
+
+	/**
+	 * Obtain a mat from the arena if there is one, or allocate a new one.
+	 *
+	 * @param arena
+	 *            The arena, null to allocate
+	 */
+	public static Mat obtainFrom(MatArena arena, int rows, int cols, int type) {
+		return (arena != null) ? arena.obtain(rows, cols, type) : new Mat(rows, cols, type);
+	}
+
+	/**
+	 * Give the mat back to the arena if there is one, or release it.
+	 *
+	 * @param arena
+	 *            The arena, null to release
+	 */
+	public static void recycleTo(MatArena arena, Mat mat) {
+		if (arena != null) {
+			arena.recycle(mat);
+		} else if (mat != null) {
+			mat.release();
+		}
+	}
+
+	/**
+	 * Get a free mat with the size and type, or allocate a new one.
+	 */
+	public synchronized Mat obtain(int rows, int cols, int type) {
+		Key key = new Key(rows, cols, type);
+		LinkedList<Mat> freeMats = mFreeMats.get(key);
+		if ((freeMats != null) && !freeMats.isEmpty()) {
+			mReuseCount++;
+			Mat mat = freeMats.removeLast();
+			mHandedOutMats.put(mat, key);
+			return mat;
+		}
+		Mat mat = new Mat(rows, cols, type);
+		if (!mReleased) {
+			mAllocationCount++;
+			mBytes += key.getBytes();
+			mHighWaterBytes = Math.max(mHighWaterBytes, mBytes);
+			mHandedOutMats.put(mat, key);
+		}
+		return mat;
+	}
+
+	/**
+	 * Keep the mat for the next {@link #obtain(int, int, int)}, it must not be used by the caller after this call. Mats which were not handed out
+	 * since the last {@link #clear()} are released, as well as mats which were changed into another size or type.
+	 */
+	public synchronized void recycle(Mat mat) {
+		if (mat == null) {
+			return;
+		}
+		Key key = mHandedOutMats.remove(mat);
+		if (key == null) {
+			// Not ours, or handed out before clear() and no longer counted
+			mat.release();
+			return;
+		}
+		if (!key.matches(mat)) {
+			mBytes -= key.getBytes();
+			mat.release();
+			return;
+		}
+		LinkedList<Mat> freeMats = mFreeMats.get(key);
+		if (freeMats == null) {
+			mFreeMats.put(key, freeMats = new LinkedList<Mat>());
+		}
+		freeMats.addLast(mat);
+	}
+
+	/**
+	 * Release the free mats, e.g. when the image is changed and mats of the old size are useless. Mats handed out before are released when they
+	 * are recycled, and no longer counted.
+	 */
+	public synchronized void clear() {
+		for (LinkedList<Mat> freeMats : mFreeMats.values()) {
+			for (Mat mat : freeMats) {
+				mBytes -= mat.total() * mat.elemSize();
+				mat.release();
+			}
+		}
+		mFreeMats.clear();
+		for (Key key : mHandedOutMats.values()) {
+			mBytes -= key.getBytes();
+		}
+		mHandedOutMats.clear();
+	}
+
+	/**
+	 * Release the free mats, and release the mats recycled later directly.
+	 */
+	public synchronized void release() {
+		clear();
+		mReleased = true;
+	}
+
+	/**
+	 * Get the most native bytes held by the arena at once, both handed out and free.
+	 */
+	public synchronized long getHighWaterBytes() {
+		return mHighWaterBytes;
+	}
+
+	public synchronized long getAllocationCount() {
+		return mAllocationCount;
+	}
+
+	public synchronized long getReuseCount() {
+		return mReuseCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "bytes: " + mBytes + ", high water: " + mHighWaterBytes + ", allocations: " + mAllocationCount + ", reuses: " + mReuseCount;
+	}
+
+	private static class Key {
+		private final int mRows;
+		private final int mCols;
+		private final int mType;
+
+		Key(int rows, int cols, int type) {
+			mRows = rows;
+			mCols = cols;
+			mType = type;
+		}
+
+		boolean matches(Mat mat) {
+			return !mat.empty() && !mat.isSubmatrix() && (mat.rows() == mRows) && (mat.cols() == mCols) && (mat.type() == mType);
+		}
+
+		long getBytes() {
+			return (long) mRows * mCols * CvType.ELEM_SIZE(mType);
+		}
+
+		@Override
+		public int hashCode() {
+			return (((mRows * 31) + mCols) * 31) + mType;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return (mRows == key.mRows) && (mCols == key.mCols) && (mType == key.mType);
+		}
+	}
+}
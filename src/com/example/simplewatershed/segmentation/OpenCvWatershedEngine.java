@@ -0,0 +1,31 @@
+package com.example.simplewatershed.segmentation;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The default backend with OpenCV's Imgproc.watershed, only 3 channel images are supported.<br>
+ * {@link WatershedSegmenter#flood(Mat, Mat, WatershedEngine)} calls Imgproc.watershed on mats directly for this backend, the array version is only
+ * used when the caller has no mat, e.g. benchmarks against other backends.
+ */
+public class OpenCvWatershedEngine implements WatershedEngine {
+	@Override
+	public void watershed(byte[] image, int width, int height, int channels, int[] markers) {
+		Mat imageMat = new Mat(height, width, CvType.makeType(CvType.CV_8U, channels));
+		imageMat.put(0, 0, image);
+		Mat markersMat = new Mat(height, width, CvType.CV_32SC1);
+		markersMat.put(0, 0, markers);
+
+		Imgproc.watershed(imageMat, markersMat);
+
+		markersMat.get(0, 0, markers);
+		imageMat.release();
+		markersMat.release();
+	}
+
+	@Override
+	public String getName() {
+		return "opencv";
+	}
+}
@@ -0,0 +1,486 @@
+package com.example.simplewatershed.segmentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Watershed on large images across cores: the image is split into overlapping tiles, which are flooded in parallel by engines of the
+ * factory, one engine per thread.<br>
+ * A tile alone can't tell which region its pixels belong to if the competing markers are outside of it, so the image is first flooded at
+ * 1 / {@link #GUIDE_SCALE} size, and the guide labels are seeded on the inner edge of each tile. The seeds are in the overlap, which is
+ * dropped.<br>
+ * Labels of markers mean the same in every tile, so the tiles are stitched by keeping the core of each tile, the part without the overlap.
+ * The stitched labels are then checked: the overlap of each tile must agree with the neighbor's core, and the core must agree with the guide
+ * away from the guide's lines. Otherwise the guide was wrong somewhere, e.g. an opening thinner than its blocks, so some tiles were seeded
+ * with wrong labels. Those tiles are repaired as one block, flooded from the original markers without any seeds. The block grows by the
+ * neighbors which disagree with it, until it agrees with all its neighbors. Only if it would cover more than half of the image, the whole
+ * image is flooded again instead.<br>
+ * Which side of an edge becomes the watershed line depends on which front reaches it first, so the line may lie one pixel away from where the
+ * single engine puts it. Where fronts meet on a flat area without any edge, the meeting point may differ as well.<br>
+ * <strong>Note:</strong> Always call {@link #shutdown()} when the engine is no longer used.
+ */
+public class TiledWatershedEngine implements WatershedEngine {
+	public static final int DEFAULT_TILE_SIZE = 512;
+	public static final int DEFAULT_OVERLAP = 32;
+	public static final int GUIDE_SCALE = 4;
+
+	/**
+	 * Create engines for tile jobs, engines are not shared between threads.
+	 */
+	public interface Factory {
+		WatershedEngine newEngine();
+	}
+
+	private final Factory mFactory;
+	private final int mTileSize;
+	private final int mOverlap;
+	private final ExecutorService mExecutor;
+	// One engine per thread of executor, reused across tiles
+	private final ThreadLocal<WatershedEngine> mEngines = new ThreadLocal<WatershedEngine>() {
+		@Override
+		protected WatershedEngine initialValue() {
+			return mFactory.newEngine();
+		}
+	};
+	// Floods the guide, small images, the repaired blocks and the fallback on the calling thread
+	private final WatershedEngine mSeamEngine;
+	private int mRepairCount;
+	private int mFallbackCount;
+
+	public TiledWatershedEngine(Factory factory, int threads) {
+		this(factory, threads, DEFAULT_TILE_SIZE, DEFAULT_OVERLAP);
+	}
+
+	/**
+	 * @param factory
+	 *            Create engines for tiles
+	 * @param threads
+	 *            The number of threads to flood tiles
+	 * @param tileSize
+	 *            The size of the core of tiles
+	 * @param overlap
+	 *            The extra pixels on each side of a tile, shared with its neighbors
+	 */
+	public TiledWatershedEngine(Factory factory, int threads, int tileSize, int overlap) {
+		mFactory = factory;
+		mTileSize = tileSize;
+		mOverlap = overlap;
+		mSeamEngine = factory.newEngine();
+		mExecutor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TiledWatershed");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public synchronized void watershed(byte[] image, int width, int height, int channels, int[] markers) {
+		int tilesX = (width + mTileSize - 1) / mTileSize;
+		int tilesY = (height + mTileSize - 1) / mTileSize;
+		if ((tilesX * tilesY) <= 1) {
+			mSeamEngine.watershed(image, width, height, channels, markers);
+			return;
+		}
+		int[] original = markers.clone();
+		Guide guide = new Guide(image, width, height, channels, original);
+
+		// Flood all tiles in parallel
+		List<Future<Tile>> futures = new ArrayList<Future<Tile>>(tilesX * tilesY);
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				Tile tile = new Tile(tx * mTileSize, ty * mTileSize, Math.min((tx + 1) * mTileSize, width), Math.min((ty + 1) * mTileSize, height),
+						width, height);
+				futures.add(mExecutor.submit(new TileJob(tile, image, width, channels, original, guide)));
+			}
+		}
+		List<Tile> tiles = new ArrayList<Tile>(futures.size());
+		try {
+			for (Future<Tile> future : futures) {
+				tiles.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		// Keep the core of each tile
+		for (Tile tile : tiles) {
+			tile.copyCoreTo(markers, width);
+		}
+
+		// Check all tiles against their neighbors and the guide
+		boolean[] failed = new boolean[tiles.size()];
+		boolean anyFailed = false;
+		for (int i = 0; i < tiles.size(); i++) {
+			failed[i] = !isConsistent(tiles.get(i), width, markers, guide);
+			anyFailed |= failed[i];
+		}
+		if (!anyFailed) {
+			return;
+		}
+		mRepairCount++;
+		if (!repair(tiles, failed, tilesX, tilesY, image, width, height, channels, original, markers)) {
+			mFallbackCount++;
+			System.arraycopy(original, 0, markers, 0, markers.length);
+			mSeamEngine.watershed(image, width, height, channels, markers);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "tiled-" + mSeamEngine.getName();
+	}
+
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Get the number of calls whose tiles were not all consistent, so a block of tiles or the whole image was flooded again.
+	 */
+	public synchronized int getRepairCount() {
+		return mRepairCount;
+	}
+
+	/**
+	 * Get the number of calls whose repair grew too large, so the whole image was flooded on the calling thread.
+	 */
+	public synchronized int getFallbackCount() {
+		return mFallbackCount;
+	}
+
+	/**
+	 * Flood the block of tiles around the failed ones from the original markers, on the calling thread. The block is grown by the neighbors
+	 * which disagree with it, and its core is copied into markers once it agrees with all of them.
+	 * 
+	 * @return false if the block would cover more than half of the image, markers are not changed then
+	 */
+	private boolean repair(List<Tile> tiles, boolean[] failed, int tilesX, int tilesY, byte[] image, int width, int height, int channels,
+			int[] original, int[] markers) {
+		int left = tilesX;
+		int top = tilesY;
+		int right = -1;
+		int bottom = -1;
+		for (int i = 0; i < failed.length; i++) {
+			if (failed[i]) {
+				left = Math.min(left, i % tilesX);
+				top = Math.min(top, i / tilesX);
+				right = Math.max(right, i % tilesX);
+				bottom = Math.max(bottom, i / tilesX);
+			}
+		}
+
+		while (true) {
+			int coreRight = Math.min((right + 1) * mTileSize, width);
+			int coreBottom = Math.min((bottom + 1) * mTileSize, height);
+			if (((long) (coreRight - (left * mTileSize)) * (coreBottom - (top * mTileSize)) * 2) > ((long) width * height)) {
+				return false;
+			}
+			Tile block = new Tile(left * mTileSize, top * mTileSize, coreRight, coreBottom, width, height);
+			flood(block, image, width, channels, original, null, mSeamEngine);
+
+			// Grow by the neighbors which disagree, or on all sides if the block couldn't reach some pixels from the markers inside
+			int newLeft = left;
+			int newTop = top;
+			int newRight = right;
+			int newBottom = bottom;
+			if (hasUnknown(block)) {
+				newLeft = Math.max(left - 1, 0);
+				newTop = Math.max(top - 1, 0);
+				newRight = Math.min(right + 1, tilesX - 1);
+				newBottom = Math.min(bottom + 1, tilesY - 1);
+			} else {
+				for (int ty = Math.max(top - 1, 0); ty <= Math.min(bottom + 1, tilesY - 1); ty++) {
+					for (int tx = Math.max(left - 1, 0); tx <= Math.min(right + 1, tilesX - 1); tx++) {
+						if ((tx >= left) && (tx <= right) && (ty >= top) && (ty <= bottom)) {
+							continue;
+						}
+						Tile neighbor = tiles.get((ty * tilesX) + tx);
+						if (conflict(block, neighbor) || conflict(neighbor, block)) {
+							newLeft = Math.min(newLeft, tx);
+							newTop = Math.min(newTop, ty);
+							newRight = Math.max(newRight, tx);
+							newBottom = Math.max(newBottom, ty);
+						}
+					}
+				}
+			}
+			if ((newLeft == left) && (newTop == top) && (newRight == right) && (newBottom == bottom)) {
+				block.copyCoreTo(markers, width);
+				return true;
+			}
+			left = newLeft;
+			top = newTop;
+			right = newRight;
+			bottom = newBottom;
+		}
+	}
+
+	/**
+	 * Whether the tile can be kept: no pixel of the core is unknown or in another region than the guide says, and the overlap is in the same
+	 * regions as the neighbor's core. Lines may differ, see {@link TiledWatershedEngine}.
+	 */
+	private boolean isConsistent(Tile tile, int width, int[] markers, Guide guide) {
+		for (int y = tile.mCoreTop; y < tile.mCoreBottom; y++) {
+			int row = y * width;
+			for (int x = tile.mCoreLeft; x < tile.mCoreRight; x++) {
+				int label = markers[row + x];
+				if (label == UNKNOWN) {
+					return false;
+				}
+				int guideLabel = guide.getInnerLabel(x, y);
+				if ((label > 0) && (guideLabel > 0) && (label != guideLabel)) {
+					return false;
+				}
+			}
+		}
+		// The outer frame of tile is always a boundary, and the guide seeds are inside it
+		return !conflict(tile, width, markers, tile.mLeft + 2, tile.mTop + 2, tile.mCoreLeft, tile.mBottom - 2)
+				&& !conflict(tile, width, markers, tile.mCoreRight, tile.mTop + 2, tile.mRight - 2, tile.mBottom - 2)
+				&& !conflict(tile, width, markers, tile.mCoreLeft, tile.mTop + 2, tile.mCoreRight, tile.mCoreTop)
+				&& !conflict(tile, width, markers, tile.mCoreLeft, tile.mCoreBottom, tile.mCoreRight, tile.mBottom - 2);
+	}
+
+	/**
+	 * Whether any pixel of the overlap of a, inside the core of b, is in another region by a than by b. The outer frame of a is skipped, it's
+	 * always a boundary.
+	 */
+	private static boolean conflict(Tile a, Tile b) {
+		int left = Math.max(a.mLeft + 2, b.mCoreLeft);
+		int top = Math.max(a.mTop + 2, b.mCoreTop);
+		int right = Math.min(a.mRight - 2, b.mCoreRight);
+		int bottom = Math.min(a.mBottom - 2, b.mCoreBottom);
+		for (int y = top; y < bottom; y++) {
+			int rowA = ((y - a.mTop) * a.mWidth) - a.mLeft;
+			int rowB = ((y - b.mTop) * b.mWidth) - b.mLeft;
+			for (int x = left; x < right; x++) {
+				int labelA = a.mLabels[rowA + x];
+				int labelB = b.mLabels[rowB + x];
+				if ((labelA > 0) && (labelB > 0) && (labelA != labelB)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasUnknown(Tile tile) {
+		for (int y = tile.mCoreTop; y < tile.mCoreBottom; y++) {
+			int row = ((y - tile.mTop) * tile.mWidth) - tile.mLeft;
+			for (int x = tile.mCoreLeft; x < tile.mCoreRight; x++) {
+				if (tile.mLabels[row + x] == UNKNOWN) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Flood the tile with the engine, the labels are kept in the tile.
+	 * 
+	 * @param guide
+	 *            Seed the guide labels inside the outer frame, on sides which are not the image border. null to flood from the markers only.
+	 */
+	private void flood(Tile tile, byte[] image, int imageWidth, int channels, int[] markers, Guide guide, WatershedEngine engine) {
+		int height = tile.mBottom - tile.mTop;
+		byte[] tileImage = new byte[tile.mWidth * height * channels];
+		int[] labels = new int[tile.mWidth * height];
+		for (int y = 0; y < height; y++) {
+			int src = ((tile.mTop + y) * imageWidth) + tile.mLeft;
+			System.arraycopy(image, src * channels, tileImage, y * tile.mWidth * channels, tile.mWidth * channels);
+			System.arraycopy(markers, src, labels, y * tile.mWidth, tile.mWidth);
+		}
+
+		if (guide != null) {
+			int lastX = tile.mWidth - 2;
+			int lastY = height - 2;
+			for (int y = 1; y <= lastY; y++) {
+				if (tile.mLeft > 0) {
+					seed(tile, labels, guide, 1, y);
+				}
+				if (tile.mRight < imageWidth) {
+					seed(tile, labels, guide, lastX, y);
+				}
+			}
+			int imageHeight = markers.length / imageWidth;
+			for (int x = 1; x <= lastX; x++) {
+				if (tile.mTop > 0) {
+					seed(tile, labels, guide, x, 1);
+				}
+				if (tile.mBottom < imageHeight) {
+					seed(tile, labels, guide, x, lastY);
+				}
+			}
+		}
+		engine.watershed(tileImage, tile.mWidth, height, channels, labels);
+		tile.mLabels = labels;
+	}
+
+	private static void seed(Tile tile, int[] labels, Guide guide, int x, int y) {
+		int p = (y * tile.mWidth) + x;
+		if (labels[p] == UNKNOWN) {
+			labels[p] = guide.getLabel(tile.mLeft + x, tile.mTop + y);
+		}
+	}
+
+	/**
+	 * Whether any pixel in the area is in one region by the tile and in another region by the stitched labels.
+	 */
+	private static boolean conflict(Tile tile, int width, int[] markers, int left, int top, int right, int bottom) {
+		for (int y = top; y < bottom; y++) {
+			int row = y * width;
+			int tileRow = ((y - tile.mTop) * tile.mWidth) - tile.mLeft;
+			for (int x = left; x < right; x++) {
+				int label = markers[row + x];
+				int tileLabel = tile.mLabels[tileRow + x];
+				if ((label > 0) && (tileLabel > 0) && (label != tileLabel)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A tile with its core and the area including the overlap, or a block of tiles being repaired
+	 */
+	private class Tile {
+		private final int mCoreLeft;
+		private final int mCoreTop;
+		private final int mCoreRight;
+		private final int mCoreBottom;
+		private final int mLeft;
+		private final int mTop;
+		private final int mRight;
+		private final int mBottom;
+		private final int mWidth;
+		private int[] mLabels;
+
+		private Tile(int coreLeft, int coreTop, int coreRight, int coreBottom, int width, int height) {
+			mCoreLeft = coreLeft;
+			mCoreTop = coreTop;
+			mCoreRight = coreRight;
+			mCoreBottom = coreBottom;
+			mLeft = Math.max(mCoreLeft - mOverlap, 0);
+			mTop = Math.max(mCoreTop - mOverlap, 0);
+			mRight = Math.min(mCoreRight + mOverlap, width);
+			mBottom = Math.min(mCoreBottom + mOverlap, height);
+			mWidth = mRight - mLeft;
+		}
+
+		private void copyCoreTo(int[] markers, int width) {
+			for (int y = mCoreTop; y < mCoreBottom; y++) {
+				System.arraycopy(mLabels, ((y - mTop) * mWidth) + (mCoreLeft - mLeft), markers, (y * width) + mCoreLeft, mCoreRight - mCoreLeft);
+			}
+		}
+	}
+
+	private class TileJob implements Callable<Tile> {
+		private final Tile mTile;
+		private final byte[] mImage;
+		private final int mImageWidth;
+		private final int mChannels;
+		private final int[] mMarkers;
+		private final Guide mGuide;
+
+		private TileJob(Tile tile, byte[] image, int imageWidth, int channels, int[] markers, Guide guide) {
+			mTile = tile;
+			mImage = image;
+			mImageWidth = imageWidth;
+			mChannels = channels;
+			mMarkers = markers;
+			mGuide = guide;
+		}
+
+		@Override
+		public Tile call() {
+			flood(mTile, mImage, mImageWidth, mChannels, mMarkers, mGuide, mEngines.get());
+			return mTile;
+		}
+	}
+
+	/**
+	 * The labels of the image flooded at 1 / {@link #GUIDE_SCALE} size
+	 */
+	private class Guide {
+		private final int mWidth;
+		private final int[] mLabels;
+		// The label of blocks whose neighbors are all in the same region, unknown for others
+		private final int[] mInnerLabels;
+
+		private Guide(byte[] image, int width, int height, int channels, int[] markers) {
+			mWidth = (width + GUIDE_SCALE - 1) / GUIDE_SCALE;
+			int guideHeight = (height + GUIDE_SCALE - 1) / GUIDE_SCALE;
+			byte[] guideImage = new byte[mWidth * guideHeight * channels];
+			mLabels = new int[mWidth * guideHeight];
+			int[] sums = new int[channels];
+			for (int gy = 0; gy < guideHeight; gy++) {
+				for (int gx = 0; gx < mWidth; gx++) {
+					// Average the block, and take any label in it
+					int count = 0;
+					int label = UNKNOWN;
+					for (int c = 0; c < channels; c++) {
+						sums[c] = 0;
+					}
+					for (int y = gy * GUIDE_SCALE; y < Math.min((gy + 1) * GUIDE_SCALE, height); y++) {
+						for (int x = gx * GUIDE_SCALE; x < Math.min((gx + 1) * GUIDE_SCALE, width); x++) {
+							int p = (y * width) + x;
+							for (int c = 0; c < channels; c++) {
+								sums[c] += image[(p * channels) + c] & 0xff;
+							}
+							if (markers[p] > 0) {
+								label = markers[p];
+							}
+							count++;
+						}
+					}
+					int g = (gy * mWidth) + gx;
+					for (int c = 0; c < channels; c++) {
+						guideImage[(g * channels) + c] = (byte) (sums[c] / count);
+					}
+					mLabels[g] = label;
+				}
+			}
+			mSeamEngine.watershed(guideImage, mWidth, guideHeight, channels, mLabels);
+
+			mInnerLabels = new int[mLabels.length];
+			for (int gy = 1; gy < (guideHeight - 1); gy++) {
+				for (int gx = 1; gx < (mWidth - 1); gx++) {
+					int g = (gy * mWidth) + gx;
+					int label = mLabels[g];
+					if ((label > 0) && (mLabels[g - 1] == label) && (mLabels[g + 1] == label) && (mLabels[g - mWidth] == label)
+							&& (mLabels[g + mWidth] == label) && (mLabels[g - mWidth - 1] == label) && (mLabels[g - mWidth + 1] == label)
+							&& (mLabels[g + mWidth - 1] == label) && (mLabels[g + mWidth + 1] == label)) {
+						mInnerLabels[g] = label;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Get the label at the pixel of full size image, unknown for boundaries
+		 */
+		private int getLabel(int x, int y) {
+			return Math.max(mLabels[((y / GUIDE_SCALE) * mWidth) + (x / GUIDE_SCALE)], UNKNOWN);
+		}
+
+		/**
+		 * Get the label at the pixel of full size image if it's at least a block away from other regions, unknown otherwise
+		 */
+		private int getInnerLabel(int x, int y) {
+			return mInnerLabels[((y / GUIDE_SCALE) * mWidth) + (x / GUIDE_SCALE)];
+		}
+	}
+}
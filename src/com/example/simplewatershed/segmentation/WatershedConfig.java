@@ -0,0 +1,193 @@
+package com.example.simplewatershed.segmentation;
+
+/**
+ * Parameters of a watershed job. A copy is taken for each job, so the parameters can be changed while a job is running.
+ */
+public class WatershedConfig {
+	public static final int DEFAULT_THICKNESS = 8;
+	/** Names of the backends for {@link #newEngine(String, int)}, the same as {@link WatershedEngine#getName()} */
+	public static final String ENGINE_OPENCV = "opencv";
+	public static final String ENGINE_JAVA = "java";
+	public static final String ENGINE_TILED_OPENCV = "tiled-opencv";
+	public static final String ENGINE_TILED_JAVA = "tiled-java";
+
+	/**
+	 * How the margin between the foreground bounds and the background rectangle grows in the search
+	 */
+	public enum Growth {
+		/** Grow by one stroke thickness per iteration */
+		LINEAR,
+		/** Multiply by the growth factor per iteration */
+		GEOMETRIC,
+		/** Grow geometrically until stable, then binary search for the smallest margin with the same area */
+		BINARY
+	}
+
+	// The thickness of user's stroke
+	private int mThickness;
+	// Whether watershed only runs on the region around markers, or on the whole image
+	private boolean mRoiWatershed;
+	// Search the background bounds on the image scaled by 1 / 2^level, 0 for full resolution only
+	private int mPyramidLevel;
+	// The backend which floods markers
+	private WatershedEngine mEngine;
+	// Convergence of the background bounds search
+	private Growth mGrowth;
+	private double mGrowthFactor;
+	private int mMaxIterations;
+	private double mAreaThreshold;
+	// Scratch mats shared by the jobs of a container, null to allocate them per job
+	private MatArena mArena;
+
+	public WatershedConfig() {
+		mThickness = DEFAULT_THICKNESS;
+		mRoiWatershed = true;
+		mPyramidLevel = 0;
+		mEngine = new OpenCvWatershedEngine();
+		// The same search as before it was configurable
+		mGrowth = Growth.LINEAR;
+		mGrowthFactor = 2;
+		mMaxIterations = 2;
+		mAreaThreshold = 0;
+	}
+
+	public WatershedConfig(WatershedConfig config) {
+		mThickness = config.mThickness;
+		mRoiWatershed = config.mRoiWatershed;
+		mPyramidLevel = config.mPyramidLevel;
+		mEngine = config.mEngine;
+		mGrowth = config.mGrowth;
+		mGrowthFactor = config.mGrowthFactor;
+		mMaxIterations = config.mMaxIterations;
+		mAreaThreshold = config.mAreaThreshold;
+		mArena = config.mArena;
+	}
+
+	/**
+	 * Create a backend by its name, e.g. from the command line.
+	 * 
+	 * @param name
+	 *            One of {@link #ENGINE_OPENCV}, {@link #ENGINE_JAVA}, {@link #ENGINE_TILED_OPENCV} or {@link #ENGINE_TILED_JAVA}
+	 * @param threads
+	 *            The number of threads of a tiled backend, ignored by others
+	 * @return The backend, the caller should shut down a {@link TiledWatershedEngine} when it's no longer used.
+	 * @throws IllegalArgumentException
+	 *             If the name is unknown
+	 */
+	public static WatershedEngine newEngine(String name, int threads) {
+		if (ENGINE_OPENCV.equals(name)) {
+			return new OpenCvWatershedEngine();
+		} else if (ENGINE_JAVA.equals(name)) {
+			return new JavaWatershedEngine();
+		} else if (ENGINE_TILED_OPENCV.equals(name)) {
+			return new TiledWatershedEngine(new TiledWatershedEngine.Factory() {
+				@Override
+				public WatershedEngine newEngine() {
+					return new OpenCvWatershedEngine();
+				}
+			}, threads);
+		} else if (ENGINE_TILED_JAVA.equals(name)) {
+			return new TiledWatershedEngine(new TiledWatershedEngine.Factory() {
+				@Override
+				public WatershedEngine newEngine() {
+					return new JavaWatershedEngine();
+				}
+			}, threads);
+		}
+		throw new IllegalArgumentException("Unknown engine: " + name);
+	}
+
+	public int getThickness() {
+		return mThickness;
+	}
+
+	public void setThickness(int thickness) {
+		mThickness = thickness;
+	}
+
+	public boolean isRoiWatershed() {
+		return mRoiWatershed;
+	}
+
+	public void setRoiWatershed(boolean roiWatershed) {
+		mRoiWatershed = roiWatershed;
+	}
+
+	public int getPyramidLevel() {
+		return mPyramidLevel;
+	}
+
+	/**
+	 * Set the level of pyramid, 2 for 1/4 and 3 for 1/8 downscale. 0 to turn off the pyramid mode.
+	 */
+	public void setPyramidLevel(int pyramidLevel) {
+		mPyramidLevel = pyramidLevel;
+	}
+
+	public WatershedEngine getEngine() {
+		return mEngine;
+	}
+
+	/**
+	 * Set the backend which floods markers, {@link OpenCvWatershedEngine} by default.
+	 */
+	public void setEngine(WatershedEngine engine) {
+		mEngine = engine;
+	}
+
+	public Growth getGrowth() {
+		return mGrowth;
+	}
+
+	/**
+	 * Set how the margin of background rectangle grows, {@link Growth#LINEAR} by default.
+	 */
+	public void setGrowth(Growth growth) {
+		mGrowth = growth;
+	}
+
+	public double getGrowthFactor() {
+		return mGrowthFactor;
+	}
+
+	/**
+	 * Set the factor of margin per iteration for {@link Growth#GEOMETRIC} and {@link Growth#BINARY}, should be greater than 1. 2 by default.
+	 */
+	public void setGrowthFactor(double growthFactor) {
+		mGrowthFactor = growthFactor;
+	}
+
+	public int getMaxIterations() {
+		return mMaxIterations;
+	}
+
+	/**
+	 * Set the max number of watershed passes in the search, 2 by default. The search stops here even if it's not stable.
+	 */
+	public void setMaxIterations(int maxIterations) {
+		mMaxIterations = maxIterations;
+	}
+
+	public double getAreaThreshold() {
+		return mAreaThreshold;
+	}
+
+	/**
+	 * Set the relative change of foreground area below which the search is stable, e.g. 0.01 for 1%. 0 by default, which stops only when the
+	 * area doesn't grow at all.
+	 */
+	public void setAreaThreshold(double areaThreshold) {
+		mAreaThreshold = areaThreshold;
+	}
+
+	public MatArena getArena() {
+		return mArena;
+	}
+
+	/**
+	 * Set the arena to take scratch mats from, the foreground masks are taken from it as well. null by default, which allocates them per job.
+	 */
+	public void setArena(MatArena arena) {
+		mArena = arena;
+	}
+}
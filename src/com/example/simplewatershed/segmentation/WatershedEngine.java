@@ -0,0 +1,33 @@
+package com.example.simplewatershed.segmentation;
+
+/**
+ * A backend which floods markers over an image, the same as OpenCV's Imgproc.watershed.<br>
+ * Labels: 0 is unknown, positive values are regions (1 for foreground and 2 for background in this app), {@link #BOUNDARY} for pixels between
+ * two regions and the outer frame of the image.<br>
+ * Only primitive arrays are used, so backends without native code can run on a plain JVM.
+ */
+public interface WatershedEngine {
+	int UNKNOWN = 0;
+	int BOUNDARY = -1;
+
+	/**
+	 * Flood all unknown pixels from the markers in place.
+	 *
+	 * @param image
+	 *            Interleaved 8-bit pixels, row by row without padding
+	 * @param width
+	 *            The width of image
+	 * @param height
+	 *            The height of image
+	 * @param channels
+	 *            The number of channels per pixel
+	 * @param markers
+	 *            The labels of each pixel, width * height
+	 */
+	void watershed(byte[] image, int width, int height, int channels, int[] markers);
+
+	/**
+	 * Get the name of backend, for logging and benchmarks
+	 */
+	String getName();
+}
@@ -0,0 +1,511 @@
+package com.example.simplewatershed.segmentation;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The segmentation core shared by ImageContainer and the headless pipeline: markers in, foreground mask out.<br>
+ * Only OpenCV's core and imgproc are used, no Android class, so it runs on a plain JVM with desktop OpenCV as well, e.g. for batch runs,
+ * benchmarks and tests.<br>
+ * Markers are 1 channel 8-bit labels, {@link #sForeground} for the object and {@link #sBackground} for the background, 0 for unknown.
+ */
+public class WatershedSegmenter {
+	public static final Scalar sForeground = new Scalar(1.0);
+	public static final Scalar sBackground = new Scalar(2.0);
+	public static final Scalar sBlack = new Scalar(0.0, 0.0, 0.0, 255.0);
+	private static final Scalar sWhite = new Scalar(255.0);
+
+	/**
+	 * Find the foreground area with watershed, the background bounds grows from the foreground markers until the result is stable.<br>
+	 * How the margin grows, when the result is stable and the max number of passes are taken from config. The markers are flooded as they are
+	 * drawn, only the background rectangle is added in each pass.
+	 * 
+	 * @param originMat
+	 *            The 3 channel source image
+	 * @param markers
+	 *            The 1 channel mask with user's markers, will not be changed
+	 * @param config
+	 *            The parameters of watershed
+	 * @param bounds
+	 *            The rect to save the area where the foreground can be found, empty if there is no foreground. null if not needed.
+	 * @param stats
+	 *            The stats to save each iteration of the search, null if not needed.
+	 * @return The mask of foreground, the caller should release it, or recycle it to the arena of config.
+	 */
+	public static Mat watershed(Mat originMat, Mat markers, WatershedConfig config, Rect bounds, GrowthStats stats) {
+		MatArena arena = config.getArena();
+		Mat result = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		result.setTo(sBlack);
+		Rect roi = new Rect();
+		if (stats != null) {
+			stats.reset();
+		}
+
+		// Find the bounds of user's foreground markers
+		Rect rect = findLabelBounds(markers, sForeground, arena);
+		if (rect != null) {
+			int thickness = config.getThickness();
+			int maxIterations = Math.max(config.getMaxIterations(), 1);
+			double factor = Math.max(config.getGrowthFactor(), 1.1);
+			// The result of each pass is written into candidate, and swapped into result if it's kept
+			Mat candidate = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+			candidate.setTo(sBlack);
+			Rect candidateRoi = new Rect();
+			// The 32-bit labels of each pass, a full-size plane so any ROI fits in it
+			Mat labels = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_32S);
+
+			// The margin of the kept result, and the largest margin known to be too small
+			double space = 5 * thickness;
+			double keptSpace = 0;
+			double smallSpace = thickness;
+			int area = 0;
+			int iteration = 0;
+			boolean converged = false;
+
+			// Start iterate procedure to find the minimum background bounds
+			while (iteration < maxIterations) {
+				long startTime = System.nanoTime();
+				candidateRoi = floodWithMargin(originMat, markers, rect, space, config, labels, candidate, candidateRoi);
+				int candidateArea = countForeground(candidate, candidateRoi);
+				long elapsedTime = System.nanoTime() - startTime;
+				if (stats != null) {
+					stats.add(space, candidateArea, elapsedTime);
+				}
+				iteration++;
+
+				converged = !isGrown(area, candidateArea, config.getAreaThreshold());
+				if ((iteration == 1) || !converged || (config.getGrowth() != WatershedConfig.Growth.BINARY)) {
+					// Keep the latest result
+					Mat tmp = result;
+					result = candidate;
+					candidate = tmp;
+					Rect tmpRoi = roi;
+					roi = candidateRoi;
+					candidateRoi = tmpRoi;
+					if (!converged && (iteration > 1)) {
+						smallSpace = keptSpace;
+					}
+					keptSpace = space;
+					area = candidateArea;
+				}
+				if (converged) {
+					break;
+				}
+				space = (config.getGrowth() == WatershedConfig.Growth.LINEAR) ? space + thickness : space * factor;
+			}
+
+			// Binary search between the margin which was too small and the kept one, for the smallest margin with the same area
+			if (converged && (config.getGrowth() == WatershedConfig.Growth.BINARY)) {
+				while ((iteration < maxIterations) && ((keptSpace - smallSpace) > thickness)) {
+					space = (smallSpace + keptSpace) / 2;
+					long startTime = System.nanoTime();
+					candidateRoi = floodWithMargin(originMat, markers, rect, space, config, labels, candidate, candidateRoi);
+					int candidateArea = countForeground(candidate, candidateRoi);
+					long elapsedTime = System.nanoTime() - startTime;
+					if (stats != null) {
+						stats.add(space, candidateArea, elapsedTime);
+					}
+					iteration++;
+
+					if (isGrown(candidateArea, area, config.getAreaThreshold())) {
+						smallSpace = space;
+					} else {
+						Mat tmp = result;
+						result = candidate;
+						candidate = tmp;
+						Rect tmpRoi = roi;
+						roi = candidateRoi;
+						candidateRoi = tmpRoi;
+						keptSpace = space;
+						area = candidateArea;
+					}
+				}
+			}
+			MatArena.recycleTo(arena, candidate);
+			MatArena.recycleTo(arena, labels);
+			if (stats != null) {
+				stats.setConverged(converged);
+			}
+		}
+
+		if (bounds != null) {
+			bounds.x = roi.x;
+			bounds.y = roi.y;
+			bounds.width = roi.width;
+			bounds.height = roi.height;
+		}
+
+		return result;
+	}
+
+	/**
+	 * One pass of the background bounds search: take the markers with the background rectangle at the margin, flood, and filter out the
+	 * foreground.
+	 * 
+	 * @param markers
+	 *            The 1 channel mask with user's markers, converted to labels as they are
+	 * @param rect
+	 *            The bounds of foreground markers
+	 * @param labels
+	 *            The 32-bit 1 channel scratch with the size of markers
+	 * @param result
+	 *            The 1 channel mask to save the foreground, only the area of lastRoi can be non-zero
+	 * @param lastRoi
+	 *            The ROI of the last pass on result
+	 * @return The ROI of this pass, the foreground can only be found in it.
+	 */
+	private static Rect floodWithMargin(Mat originMat, Mat markers, Rect rect, double space, WatershedConfig config, Mat labels, Mat result,
+			Rect lastRoi) {
+		int thickness = config.getThickness();
+		if ((lastRoi.width > 0) && (lastRoi.height > 0)) {
+			Mat lastResult = result.submat(lastRoi);
+			lastResult.setTo(sBlack);
+			lastResult.release();
+		}
+
+		// Only the area inside the background rectangle can be changed
+		Rect roi = growRect(rect, (int) Math.ceil(space) + thickness, originMat.width(), originMat.height());
+		Mat roiResult = result.submat(roi);
+		if (config.isRoiWatershed()) {
+			// Crop both of image and markers to it, the rectangle is drawn in the coordinates of ROI
+			Mat roiMarkers = labels.submat(0, roi.height, 0, roi.width);
+			Mat roiInput = markers.submat(roi);
+			roiInput.convertTo(roiMarkers, CvType.CV_32S);
+			roiInput.release();
+			Point lt = new Point(rect.x - space - roi.x, rect.y - space - roi.y);
+			Point br = new Point((rect.x + rect.width + space) - roi.x, (rect.y + rect.height + space) - roi.y);
+			Core.rectangle(roiMarkers, lt, br, sBackground, thickness);
+
+			// Watershed
+			Mat roiOrigin = originMat.submat(roi);
+			flood(roiOrigin, roiMarkers, config.getEngine());
+			roiOrigin.release();
+
+			// Filter out the foreground from the 32-bit labels and filled with white, written into the original offset
+			Core.compare(roiMarkers, sForeground, roiResult, Core.CMP_EQ);
+			roiMarkers.release();
+		} else {
+			// Convert to 32SC1
+			markers.convertTo(labels, CvType.CV_32S);
+			Point lt = new Point(rect.x - space, rect.y - space);
+			Point br = new Point(rect.x + rect.width + space, rect.y + rect.height + space);
+			Core.rectangle(labels, lt, br, sBackground, thickness);
+
+			// Watershed
+			flood(originMat, labels, config.getEngine());
+
+			// Filter out the foreground from the 32-bit labels and filled with white, the background outside of the ROI is cleared as well
+			Core.compare(labels, sForeground, result, Core.CMP_EQ);
+		}
+		roiResult.release();
+		return roi;
+	}
+
+	/**
+	 * Get the bounding rect of pixels with the label from the max of each column and row, so only width + height bytes are read in Java.
+	 * 
+	 * @return The bounding rect, null if there is no such pixel.
+	 */
+	private static Rect findLabelBounds(Mat markers, Scalar label, MatArena arena) {
+		Mat mask = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		Core.compare(markers, label, mask, Core.CMP_EQ);
+		Mat columns = MatArena.obtainFrom(arena, 1, markers.cols(), CvType.CV_8U);
+		Core.reduce(mask, columns, 0, Core.REDUCE_MAX);
+		Mat rows = MatArena.obtainFrom(arena, markers.rows(), 1, CvType.CV_8U);
+		Core.reduce(mask, rows, 1, Core.REDUCE_MAX);
+		MatArena.recycleTo(arena, mask);
+
+		byte[] columnMax = new byte[markers.width()];
+		byte[] rowMax = new byte[markers.height()];
+		columns.get(0, 0, columnMax);
+		rows.get(0, 0, rowMax);
+		MatArena.recycleTo(arena, columns);
+		MatArena.recycleTo(arena, rows);
+
+		int left = 0;
+		while ((left < columnMax.length) && (columnMax[left] == 0)) {
+			left++;
+		}
+		if (left == columnMax.length) {
+			return null;
+		}
+		int right = columnMax.length - 1;
+		while (columnMax[right] == 0) {
+			right--;
+		}
+		int top = 0;
+		while (rowMax[top] == 0) {
+			top++;
+		}
+		int bottom = rowMax.length - 1;
+		while (rowMax[bottom] == 0) {
+			bottom--;
+		}
+		return new Rect(left, top, (right - left) + 1, (bottom - top) + 1);
+	}
+
+	private static int countForeground(Mat result, Rect roi) {
+		if ((roi.width <= 0) || (roi.height <= 0)) {
+			return 0;
+		}
+		Mat roiResult = result.submat(roi);
+		int count = Core.countNonZero(roiResult);
+		roiResult.release();
+		return count;
+	}
+
+	/**
+	 * Whether the foreground area grew by more than the relative threshold
+	 */
+	private static boolean isGrown(int oldArea, int newArea, double threshold) {
+		return newArea > (oldArea * (1 + threshold));
+	}
+
+	/**
+	 * Find the foreground area with the method chosen by config.
+	 * 
+	 * @param originMat
+	 *            The 3 channel source image
+	 * @param coarseMat
+	 *            The source image scaled by 1 / 2^level of the config's pyramid level, null if the pyramid mode is off
+	 * @param markers
+	 *            The 1 channel mask with user's markers, will not be changed
+	 * @param config
+	 *            The parameters of watershed
+	 * @param bounds
+	 *            The rect to save the area where the foreground can be found, empty if there is no foreground. null if not needed.
+	 * @param stats
+	 *            The stats to save each iteration of the search, null if not needed.
+	 * @return The mask of foreground, the caller should release it, or recycle it to the arena of config.
+	 */
+	public static Mat segment(Mat originMat, Mat coarseMat, Mat markers, WatershedConfig config, Rect bounds, GrowthStats stats) {
+		if ((config.getPyramidLevel() > 0) && (coarseMat != null)) {
+			return pyramidWatershed(originMat, coarseMat, markers, config, bounds, stats);
+		}
+		return watershed(originMat, markers, config, bounds, stats);
+	}
+
+	/**
+	 * Find the foreground area coarse-to-fine. The background bounds grows until stable on the coarse image, then only a narrow band around the
+	 * coarse boundary is flooded again at full resolution.
+	 * 
+	 * @param originMat
+	 *            The 3 channel source image
+	 * @param coarseMat
+	 *            The source image scaled by 1 / 2^level of the config's pyramid level, e.g. from SourceImageCache.getLevel() of the container
+	 * @param markers
+	 *            The 1 channel mask with user's markers, will not be changed
+	 * @param config
+	 *            The parameters of watershed
+	 * @param bounds
+	 *            The rect to save the area where the foreground can be found, empty if there is no foreground. null if not needed.
+	 * @param stats
+	 *            The stats to save each iteration of the search on the coarse image, null if not needed.
+	 * @return The mask of foreground, the caller should release it, or recycle it to the arena of config.
+	 */
+	public static Mat pyramidWatershed(Mat originMat, Mat coarseMat, Mat markers, WatershedConfig config, Rect bounds, GrowthStats stats) {
+		int scale = 1 << config.getPyramidLevel();
+		int thickness = config.getThickness();
+		WatershedEngine engine = config.getEngine();
+		MatArena arena = config.getArena();
+		Mat result = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		result.setTo(sBlack);
+		if (bounds != null) {
+			bounds.x = bounds.y = bounds.width = bounds.height = 0;
+		}
+
+		// Any foreground marker inside a block marks the coarse pixel as foreground, so thin strokes are kept
+		Mat foreground = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		Core.inRange(markers, sForeground, sForeground, foreground);
+		Mat coarseMarkers = MatArena.obtainFrom(arena, coarseMat.rows(), coarseMat.cols(), CvType.CV_8U);
+		Imgproc.resize(foreground, coarseMarkers, coarseMat.size(), 0, 0, Imgproc.INTER_AREA);
+		Core.compare(coarseMarkers, sBlack, coarseMarkers, Core.CMP_GT);
+		coarseMarkers.setTo(sForeground, coarseMarkers);
+
+		// Grow-until-stable search on the coarse image
+		Rect coarseBounds = new Rect();
+		WatershedConfig coarseConfig = new WatershedConfig(config);
+		coarseConfig.setThickness(Math.max(thickness / scale, 1));
+		coarseConfig.setRoiWatershed(true);
+		Mat coarseResult = watershed(coarseMat, coarseMarkers, coarseConfig, coarseBounds, stats);
+		MatArena.recycleTo(arena, coarseMarkers);
+		if ((coarseBounds.width <= 0) || (coarseBounds.height <= 0)) {
+			MatArena.recycleTo(arena, coarseResult);
+			MatArena.recycleTo(arena, foreground);
+			return result;
+		}
+
+		// Map the coarse bounds to full resolution, grown by the band
+		int band = Math.max(2 * scale, thickness);
+		Rect coarseRoi = growRect(coarseBounds, (band / scale) + 1, coarseMat.width(), coarseMat.height());
+		Rect roi = new Rect(coarseRoi.x * scale, coarseRoi.y * scale, Math.min(coarseRoi.width * scale, originMat.width() - (coarseRoi.x * scale)),
+				Math.min(coarseRoi.height * scale, originMat.height() - (coarseRoi.y * scale)));
+
+		// The ROI sized mats are views into full-size planes from the arena, so their size doesn't change from stroke to stroke
+		Mat coarseRoiResult = coarseResult.submat(coarseRoi);
+		Mat upscaledPlane = MatArena.obtainFrom(arena, coarseMat.rows() * scale, coarseMat.cols() * scale, CvType.CV_8U);
+		Mat upscaled = upscaledPlane.submat(0, coarseRoi.height * scale, 0, coarseRoi.width * scale);
+		Imgproc.resize(coarseRoiResult, upscaled, upscaled.size(), 0, 0, Imgproc.INTER_NEAREST);
+		Mat coarseMask = upscaled.submat(0, roi.height, 0, roi.width);
+		coarseRoiResult.release();
+		MatArena.recycleTo(arena, coarseResult);
+
+		// Sure foreground inside the band, sure background outside, and unknown in the band.
+		// OpenCV 2.4 morphology reads the plane around a view and has no isolated border, so the plane next to the upscaled mask is filled
+		// with what the default border of each operation would be: white doesn't erode and black doesn't dilate
+		Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size((2 * band) + 1, (2 * band) + 1));
+		Mat sureForegroundPlane = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		Mat sureForeground = sureForegroundPlane.submat(0, roi.height, 0, roi.width);
+		fillAround(upscaledPlane, upscaled.rows(), upscaled.cols(), band, sWhite);
+		Imgproc.erode(coarseMask, sureForeground, kernel);
+		Mat sureBackgroundPlane = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		Mat sureBackground = sureBackgroundPlane.submat(0, roi.height, 0, roi.width);
+		fillAround(upscaledPlane, upscaled.rows(), upscaled.cols(), band, sBlack);
+		Imgproc.dilate(coarseMask, sureBackground, kernel);
+		Core.compare(sureBackground, sBlack, sureBackground, Core.CMP_EQ);
+
+		Mat roiMarkersPlane = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_8U);
+		Mat roiMarkers = roiMarkersPlane.submat(0, roi.height, 0, roi.width);
+		roiMarkers.setTo(sBlack);
+		roiMarkers.setTo(sBackground, sureBackground);
+		roiMarkers.setTo(sForeground, sureForeground);
+		Mat roiForeground = foreground.submat(roi);
+		roiMarkers.setTo(sForeground, roiForeground);
+		Mat labelsPlane = MatArena.obtainFrom(arena, markers.rows(), markers.cols(), CvType.CV_32S);
+		Mat roiLabels = labelsPlane.submat(0, roi.height, 0, roi.width);
+		roiMarkers.convertTo(roiLabels, CvType.CV_32S);
+
+		// Flood the band only at full resolution
+		Mat roiOrigin = originMat.submat(roi);
+		flood(roiOrigin, roiLabels, engine);
+		Mat roiResult = result.submat(roi);
+		Core.compare(roiLabels, sForeground, roiResult, Core.CMP_EQ);
+
+		if (bounds != null) {
+			bounds.x = roi.x;
+			bounds.y = roi.y;
+			bounds.width = roi.width;
+			bounds.height = roi.height;
+		}
+
+		// Release all temporally reference/resource, the kernel depends on the band so it's not kept
+		upscaled.release();
+		coarseMask.release();
+		kernel.release();
+		sureForeground.release();
+		sureBackground.release();
+		roiMarkers.release();
+		roiLabels.release();
+		roiForeground.release();
+		roiOrigin.release();
+		roiResult.release();
+		MatArena.recycleTo(arena, upscaledPlane);
+		MatArena.recycleTo(arena, sureForegroundPlane);
+		MatArena.recycleTo(arena, sureBackgroundPlane);
+		MatArena.recycleTo(arena, roiMarkersPlane);
+		MatArena.recycleTo(arena, labelsPlane);
+		MatArena.recycleTo(arena, foreground);
+
+		return result;
+	}
+
+	/**
+	 * Fill the plane right of and below its top left view, as far as a kernel of the margin reaches out of the view.
+	 * 
+	 * @param plane
+	 *            The plane the view is taken from at (0, 0)
+	 * @param rows
+	 *            The rows of the view
+	 * @param cols
+	 *            The cols of the view
+	 * @param margin
+	 *            How far the kernel reaches
+	 * @param value
+	 *            The value to fill with
+	 */
+	private static void fillAround(Mat plane, int rows, int cols, int margin, Scalar value) {
+		int bottom = Math.min(rows + margin, plane.rows());
+		int right = Math.min(cols + margin, plane.cols());
+		if (right > cols) {
+			Mat strip = plane.submat(0, bottom, cols, right);
+			strip.setTo(value);
+			strip.release();
+		}
+		if (bottom > rows) {
+			Mat strip = plane.submat(rows, bottom, 0, cols);
+			strip.setTo(value);
+			strip.release();
+		}
+	}
+
+	/**
+	 * Flood markers with the backend. OpenCV's backend works on mats directly, others on arrays copied from mats.
+	 * 
+	 * @param image
+	 *            The 3 channel 8-bit image
+	 * @param markers
+	 *            The 32-bit 1 channel labels with the same size, flooded in place
+	 * @param engine
+	 *            The backend which floods markers, null for OpenCV's
+	 */
+	public static void flood(Mat image, Mat markers, WatershedEngine engine) {
+		if ((engine == null) || (engine instanceof OpenCvWatershedEngine)) {
+			Imgproc.watershed(image, markers);
+			return;
+		}
+		int width = image.width();
+		int height = image.height();
+		byte[] pixels = new byte[width * height * image.channels()];
+		int[] labels = new int[width * height];
+		image.get(0, 0, pixels);
+		markers.get(0, 0, labels);
+		engine.watershed(pixels, width, height, image.channels(), labels);
+		markers.put(0, 0, labels);
+	}
+
+	/**
+	 * Grow the rect by space in each direction, and clamp it into the image bounds.
+	 * 
+	 * @param rect
+	 *            The target rect, will not be changed.
+	 * @param space
+	 *            The space to grow in each direction.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @return A new {@link Rect} inside the image.
+	 */
+	public static Rect growRect(Rect rect, int space, int width, int height) {
+		int left = Math.max(rect.x - space, 0);
+		int top = Math.max(rect.y - space, 0);
+		int right = Math.min(rect.x + rect.width + space, width);
+		int bottom = Math.min(rect.y + rect.height + space, height);
+		return new Rect(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
+	}
+
+	/**
+	 * Get the smallest rect contains both rects, an empty rect is ignored.
+	 * 
+	 * @return A new {@link Rect}, empty if both rects are empty.
+	 */
+	public static Rect unionRect(Rect a, Rect b) {
+		if ((b == null) || (b.width <= 0) || (b.height <= 0)) {
+			return a == null ? new Rect() : a.clone();
+		}
+		if ((a == null) || (a.width <= 0) || (a.height <= 0)) {
+			return b.clone();
+		}
+		int left = Math.min(a.x, b.x);
+		int top = Math.min(a.y, b.y);
+		int right = Math.max(a.x + a.width, b.x + b.width);
+		int bottom = Math.max(a.y + a.height, b.y + b.height);
+		return new Rect(left, top, right - left, bottom - top);
+	}
+}
@@ -0,0 +1,140 @@
+package com.example.simplewatershed.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Decode images straight to about the target size.<br>
+ * The bounds are read first, then the image is decoded with the largest power-of-2 inSampleSize which keeps it not smaller than the target,
+ * and scaled to the final size in one filtered pass. So the full resolution bitmap never exists in memory.
+ */
+public class BitmapLoader {
+	private static final String TAG = "StickMaker";
+
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+	private static final Handler sHandler = new Handler(Looper.getMainLooper());
+	private static final LatencyHistogram sDecodeTimer = Metrics.timer(Metrics.DECODE);
+	private static final LatencyHistogram sScaleTimer = Metrics.timer(Metrics.SCALE);
+
+	/**
+	 * Callback on the UI thread when the bitmap is decoded
+	 */
+	public interface OnLoadedListener {
+		/**
+		 * @param bitmap
+		 *            The decoded bitmap, null if failed.
+		 */
+		void onLoaded(Bitmap bitmap);
+	}
+
+	/**
+	 * Decode the image on a worker thread, and post the result back to the UI thread.
+	 *
+	 * @param resolver
+	 *            The ContentResolver to open the image
+	 * @param uri
+	 *            The uri of the image
+	 * @param dstW
+	 *            The target width
+	 * @param dstH
+	 *            The target height
+	 * @param listener
+	 *            The listener to receive the bitmap
+	 */
+	public static void load(final ContentResolver resolver, final Uri uri, final float dstW, final float dstH, final OnLoadedListener listener) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = null;
+				try {
+					bitmap = decodeScaledBitmap(resolver, uri, dstW, dstH);
+				} catch (FileNotFoundException e) {
+					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (OutOfMemoryError e) {
+					Logger.e(TAG, BitmapLoader.class, "Out of memory while decoding " + uri);
+				}
+
+				final Bitmap result = bitmap;
+				sHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						listener.onLoaded(result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Decode the image with the size from {@link Util#measureSmallSize(float, float, float, float)} on the calling thread.
+	 *
+	 * @return The scaled bitmap, null if the image can't be decoded.
+	 */
+	public static Bitmap decodeScaledBitmap(ContentResolver resolver, Uri uri, float dstW, float dstH) throws IOException {
+		// Read the bounds only
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decode(resolver, uri, options);
+		if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+			return null;
+		}
+
+		android.graphics.Point smallSize = Util.measureSmallSize(dstW, dstH, options.outWidth, options.outHeight);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, smallSize.x, smallSize.y);
+		options.inPreferredConfig = Config.ARGB_8888;
+		long startTime = System.nanoTime();
+		Bitmap bitmap = decode(resolver, uri, options);
+		sDecodeTimer.recordSince(startTime);
+		if (bitmap == null) {
+			return null;
+		}
+
+		if ((bitmap.getWidth() == smallSize.x) && (bitmap.getHeight() == smallSize.y)) {
+			return bitmap;
+		}
+		startTime = System.nanoTime();
+		Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, smallSize.x, smallSize.y, true);
+		if (scaledBitmap != bitmap) {
+			bitmap.recycle();
+		}
+		sScaleTimer.recordSince(startTime);
+		return scaledBitmap;
+	}
+
+	/**
+	 * Get the largest power-of-2 sample size which keeps the decoded size not smaller than the target.
+	 */
+	public static int calculateInSampleSize(int srcW, int srcH, int dstW, int dstH) {
+		int inSampleSize = 1;
+		while (((srcW / (inSampleSize * 2)) >= dstW) && ((srcH / (inSampleSize * 2)) >= dstH)) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	private static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws IOException {
+		InputStream inputStream = resolver.openInputStream(uri);
+		if (inputStream == null) {
+			throw new FileNotFoundException(uri.toString());
+		}
+		try {
+			return BitmapFactory.decodeStream(inputStream, null, options);
+		} finally {
+			inputStream.close();
+		}
+	}
+}
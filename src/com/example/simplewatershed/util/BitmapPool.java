@@ -0,0 +1,172 @@
+package com.example.simplewatershed.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+
+/**
+ * Bitmaps which are no longer shown, kept for the next allocation with the same width, height and config.<br>
+ * Reloading an image or rebuilding a layer of the same size takes a pooled bitmap instead of another large allocation. The pool holds at
+ * most a budget of bytes, the least recently pooled bitmaps are recycled first when it's full.<br>
+ * <strong>Note:</strong> A bitmap must not be used by anyone after it's put into the pool.
+ */
+public class BitmapPool {
+	private static BitmapPool sInstance;
+
+	private final long mMaxSize;
+	private long mSize;
+	private final Map<Key, LinkedList<Bitmap>> mBuckets = new HashMap<Key, LinkedList<Bitmap>>();
+	// All pooled bitmaps, the least recently pooled first
+	private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+
+	/**
+	 * The pool shared by the app, with 1/8 of the max heap as the budget.
+	 */
+	public static synchronized BitmapPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param maxSize
+	 *            The budget of pooled bitmaps in bytes
+	 */
+	public BitmapPool(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Get a mutable bitmap with the size and config, cleared to transparent. It's taken from the pool if there is one, or allocated otherwise.
+	 */
+	public Bitmap get(int width, int height, Config config) {
+		Bitmap bitmap = null;
+		synchronized (this) {
+			LinkedList<Bitmap> bucket = mBuckets.get(new Key(width, height, config));
+			if ((bucket != null) && !bucket.isEmpty()) {
+				bitmap = bucket.removeLast();
+				mLru.remove(bitmap);
+				mSize -= bitmap.getByteCount();
+				mHitCount++;
+			} else {
+				mMissCount++;
+			}
+		}
+		if (bitmap == null) {
+			return Bitmap.createBitmap(width, height, config);
+		}
+		bitmap.eraseColor(Color.TRANSPARENT);
+		return bitmap;
+	}
+
+	/**
+	 * Put a bitmap into the pool for later {@link #get(int, int, Config)}. Immutable bitmaps and bitmaps larger than the budget are recycled
+	 * immediately.
+	 */
+	public void put(Bitmap bitmap) {
+		if ((bitmap == null) || bitmap.isRecycled()) {
+			return;
+		}
+		if (!bitmap.isMutable() || (bitmap.getConfig() == null) || (bitmap.getByteCount() > mMaxSize)) {
+			bitmap.recycle();
+			return;
+		}
+
+		synchronized (this) {
+			Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			LinkedList<Bitmap> bucket = mBuckets.get(key);
+			if (bucket == null) {
+				mBuckets.put(key, bucket = new LinkedList<Bitmap>());
+			} else if (bucket.contains(bitmap)) {
+				return;
+			}
+			bucket.addLast(bitmap);
+			mLru.addLast(bitmap);
+			mSize += bitmap.getByteCount();
+			trimToSize(mMaxSize);
+		}
+	}
+
+	/**
+	 * Recycle all pooled bitmaps, e.g. when the memory is low.
+	 */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	private void trimToSize(long maxSize) {
+		while ((mSize > maxSize) && !mLru.isEmpty()) {
+			Bitmap bitmap = mLru.removeFirst();
+			Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			LinkedList<Bitmap> bucket = mBuckets.get(key);
+			bucket.remove(bitmap);
+			if (bucket.isEmpty()) {
+				mBuckets.remove(key);
+			}
+			mSize -= bitmap.getByteCount();
+			bitmap.recycle();
+			mEvictionCount++;
+		}
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "size: " + mSize + "/" + mMaxSize + ", bitmaps: " + mLru.size() + ", hits: " + mHitCount + ", misses: " + mMissCount
+				+ ", evictions: " + mEvictionCount;
+	}
+
+	private static class Key {
+		private final int mWidth;
+		private final int mHeight;
+		private final Config mConfig;
+
+		Key(int width, int height, Config config) {
+			mWidth = width;
+			mHeight = height;
+			mConfig = config;
+		}
+
+		@Override
+		public int hashCode() {
+			return (((mWidth * 31) + mHeight) * 31) + mConfig.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return (mWidth == key.mWidth) && (mHeight == key.mHeight) && (mConfig == key.mConfig);
+		}
+	}
+}
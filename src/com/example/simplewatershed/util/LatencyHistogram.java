@@ -0,0 +1,130 @@
+package com.example.simplewatershed.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with log-linear buckets as HdrHistogram does.<br>
+ * Values below 64 have a bucket each, larger values are split into 32 buckets per power of two, so any recorded value is kept within about 3%
+ * for about 15KB per histogram. Recording is a few atomic increments, safe from any thread without locks.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough for any positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String mName;
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Record a duration, negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		mCounts.incrementAndGet(indexOf(value));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(value);
+		long max = mMax.get();
+		while ((value > max) && !mMax.compareAndSet(max, value)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * Record the time from startNanos, which was taken by System.nanoTime(), until now.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public long getMean() {
+		long count = mCount.get();
+		return (count > 0) ? mTotal.get() / count : 0;
+	}
+
+	/**
+	 * Get the value at the percentile, from the buckets read one by one while recording may go on.
+	 *
+	 * @param percentile
+	 *            From 0 to 100, e.g. 99 for p99
+	 * @return The middle of the bucket where the percentile falls, in nanoseconds. 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mCounts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max((long) Math.ceil((Math.min(percentile, 100) / 100) * total), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(middleOf(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * Clear all recorded values. Values recorded at the same time may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts.set(i, 0);
+		}
+		mCount.set(0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * Count, p50, p95, p99 and max in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return mName + ": count: " + getCount() + ", p50: " + (getPercentile(50) / 1000) + "us, p95: " + (getPercentile(95) / 1000) + "us, p99: "
+				+ (getPercentile(99) / 1000) + "us, max: " + (getMax() / 1000) + "us";
+	}
+
+	private static int indexOf(long value) {
+		if (value < (SUB_BUCKETS * 2)) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return ((shift + 1) * SUB_BUCKETS) + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	private static long middleOf(int index) {
+		if (index < (SUB_BUCKETS * 2)) {
+			return index;
+		}
+		int shift = (index / SUB_BUCKETS) - 1;
+		long lowest = ((long) ((index % SUB_BUCKETS) + SUB_BUCKETS)) << shift;
+		return lowest + ((1L << shift) / 2);
+	}
+}
@@ -1,39 +1,138 @@
 package com.example.simplewatershed.util;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import android.util.Log;
 
+/**
+ * Logging of the app, cheap enough for the touch and segmentation loops.<br>
+ * <ul>
+ * <li>Tags are built once per class and cached.</li>
+ * <li>The level is checked before anything is formatted. Debug and verbose logs are written only if {@link Util#LOG} is on, and nothing is
+ * written if {@link #ENABLED} is false, which lets the compiler drop the guarded code.</li>
+ * <li>Messages can be given as a format with args, which is formatted on the sink thread, or as a {@link MessageSupplier}, which is only
+ * called if the level is loggable.</li>
+ * <li>Logs below {@link Log#ERROR} go through a ring buffer and are written to logcat by a daemon thread. If the buffer is full, the oldest
+ * log is dropped instead of blocking the caller. Errors are written immediately, so they are not lost on a crash.</li>
+ * </ul>
+ * On hot paths, guard the call with {@link #isLoggable(int)} to save the varargs array as well.
+ */
 public class Logger {
+	/**
+	 * Compile-time switch of all logs
+	 */
+	public static final boolean ENABLED = true;
+
+	private static final String DEFAULT_TAG = "StickMaker";
+	private static final int RING_SIZE = 256;
+
+	/**
+	 * Build a message only when it will be logged
+	 */
+	public interface MessageSupplier {
+		String get();
+	}
+
+	// Tags by prefix, then by class
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, String>> sTags = new ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, String>>();
+	private static final RingSink sSink = new RingSink(RING_SIZE);
 
+	// ============================================================
+	// Level checks
+	/**
+	 * Whether a log of the level would be written, check it before building an expensive message.
+	 *
+	 * @param level
+	 *            One of {@link Log#VERBOSE} to {@link Log#ERROR}
+	 */
+	public static boolean isLoggable(int level) {
+		return ENABLED && ((level > Log.DEBUG) || Util.LOG);
+	}
+
+	// ============================================================
+	// Default tag
 	public static void d(Class<?> c, String message) {
-		String className = parserClassName(c);
-		if (Util.LOG) {
-			Log.d("StickMaker" + ":" + className, message);
+		if (isLoggable(Log.DEBUG)) {
+			sSink.post(Log.DEBUG, getTag(DEFAULT_TAG, c), message, null);
+		}
+	}
+
+	/**
+	 * Log the format with args, the message is formatted by String.format() on the sink thread. Args should not be changed after the call.
+	 */
+	public static void d(Class<?> c, String format, Object... args) {
+		if (isLoggable(Log.DEBUG)) {
+			sSink.post(Log.DEBUG, getTag(DEFAULT_TAG, c), format, args);
 		}
 	}
 
+	/**
+	 * Log the message from the supplier, it's called on the calling thread only if debug logs are on.
+	 */
+	public static void d(Class<?> c, MessageSupplier supplier) {
+		if (isLoggable(Log.DEBUG)) {
+			sSink.post(Log.DEBUG, getTag(DEFAULT_TAG, c), supplier.get(), null);
+		}
+	}
+
+	// ============================================================
+	// Custom tag
 	public static void d(String tag, Class<?> c, String message) {
-		String className = parserClassName(c);
-		Log.d(tag + ":" + className, message);
+		log(Log.DEBUG, tag, c, message);
 	}
 
 	public static void e(String tag, Class<?> c, String message) {
-		String className = parserClassName(c);
-		Log.e(tag + ":" + className, message);
+		log(Log.ERROR, tag, c, message);
 	}
 
 	public static void i(String tag, Class<?> c, String message) {
-		String className = parserClassName(c);
-		Log.i(tag + ":" + className, message);
+		log(Log.INFO, tag, c, message);
 	}
 
 	public static void v(String tag, Class<?> c, String message) {
-		String className = parserClassName(c);
-		Log.v(tag + ":" + className, message);
+		log(Log.VERBOSE, tag, c, message);
 	}
 
 	public static void w(String tag, Class<?> c, String message) {
-		String className = parserClassName(c);
-		Log.w(tag + ":" + className, message);
+		log(Log.WARN, tag, c, message);
+	}
+
+	/**
+	 * Log the format with args at the level, the message is formatted on the sink thread unless it's an error.
+	 */
+	public static void log(int level, String tag, Class<?> c, String format, Object... args) {
+		if (isLoggable(level)) {
+			sSink.post(level, getTag(tag, c), format, args);
+		}
+	}
+
+	private static void log(int level, String tag, Class<?> c, String message) {
+		if (isLoggable(level)) {
+			sSink.post(level, getTag(tag, c), message, null);
+		}
+	}
+
+	/**
+	 * Get the number of logs dropped because the ring buffer was full.
+	 */
+	public static long getDroppedCount() {
+		return sSink.getDroppedCount();
+	}
+
+	// ============================================================
+	// Tags
+	private static String getTag(String prefix, Class<?> c) {
+		ConcurrentHashMap<Class<?>, String> tags = sTags.get(prefix);
+		if (tags == null) {
+			sTags.putIfAbsent(prefix, new ConcurrentHashMap<Class<?>, String>());
+			tags = sTags.get(prefix);
+		}
+		String tag = tags.get(c);
+		if (tag == null) {
+			tag = prefix + ":" + parserClassName(c);
+			tags.putIfAbsent(c, tag);
+		}
+		return tag;
 	}
 
 	private static String parserClassName(Class<?> c) {
@@ -45,4 +144,102 @@ public class Logger {
 			return c.getName().substring(++dotLastIndex);
 		}
 	}
+
+	// ============================================================
+	// Sink
+	/**
+	 * A fixed ring of log entries written to logcat by a daemon thread. The entries are allocated once and reused.
+	 */
+	private static class RingSink implements Runnable {
+		private final int[] mLevels;
+		private final String[] mTags;
+		private final String[] mMessages;
+		private final Object[][] mArgs;
+		private int mHead;
+		private int mSize;
+		private long mDroppedCount;
+		private Thread mThread;
+
+		RingSink(int capacity) {
+			mLevels = new int[capacity];
+			mTags = new String[capacity];
+			mMessages = new String[capacity];
+			mArgs = new Object[capacity][];
+		}
+
+		void post(int level, String tag, String message, Object[] args) {
+			if (level >= Log.ERROR) {
+				// Written right away, the process may be about to die
+				Log.println(level, tag, format(message, args));
+				return;
+			}
+			synchronized (this) {
+				if (mThread == null) {
+					mThread = new Thread(this, "LoggerSink");
+					mThread.setDaemon(true);
+					mThread.start();
+				}
+				if (mSize == mLevels.length) {
+					// Drop the oldest
+					mHead = (mHead + 1) % mLevels.length;
+					mSize--;
+					mDroppedCount++;
+				}
+				int tail = (mHead + mSize) % mLevels.length;
+				mLevels[tail] = level;
+				mTags[tail] = tag;
+				mMessages[tail] = message;
+				mArgs[tail] = args;
+				mSize++;
+				if (mSize == 1) {
+					notify();
+				}
+			}
+		}
+
+		synchronized long getDroppedCount() {
+			return mDroppedCount;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				int level;
+				String tag;
+				String message;
+				Object[] args;
+				synchronized (this) {
+					while (mSize == 0) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					level = mLevels[mHead];
+					tag = mTags[mHead];
+					message = mMessages[mHead];
+					args = mArgs[mHead];
+					mTags[mHead] = null;
+					mMessages[mHead] = null;
+					mArgs[mHead] = null;
+					mHead = (mHead + 1) % mLevels.length;
+					mSize--;
+				}
+				Log.println(level, tag, format(message, args));
+			}
+		}
+
+		private static String format(String message, Object[] args) {
+			if ((args == null) || (args.length == 0)) {
+				return message;
+			}
+			try {
+				return String.format(message, args);
+			} catch (RuntimeException e) {
+				// A broken format should not kill the sink
+				return message;
+			}
+		}
+	}
 }
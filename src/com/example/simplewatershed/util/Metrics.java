@@ -0,0 +1,118 @@
+package com.example.simplewatershed.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Named timers of the app, so the time of each stage can be seen on real devices without a profiler.<br>
+ * A call site keeps its timer in a static field and records around the stage:
+ *
+ * <pre>
+ * private static final LatencyHistogram sTimer = Metrics.timer(Metrics.WATERSHED);
+ *
+ * long start = System.nanoTime();
+ * ...
+ * sTimer.recordSince(start);
+ * </pre>
+ */
+public class Metrics {
+	public static final String DECODE = "bitmap.decode";
+	public static final String SCALE = "bitmap.scale";
+	public static final String UPLOAD = "bitmap.upload";
+	public static final String RASTERIZE = "stroke.rasterize";
+	public static final String WATERSHED = "watershed.segment";
+	public static final String WATERSHED_ITERATION = "watershed.iteration";
+	public static final String COMPOSITE = "preview.composite";
+
+	private static final Map<String, LatencyHistogram> sTimers = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static ScheduledExecutorService sDumpExecutor;
+	private static ScheduledFuture<?> sDumpFuture;
+
+	/**
+	 * Get the timer with the name, it's created on the first call.
+	 */
+	public static LatencyHistogram timer(String name) {
+		LatencyHistogram timer = sTimers.get(name);
+		if (timer == null) {
+			synchronized (sTimers) {
+				timer = sTimers.get(name);
+				if (timer == null) {
+					sTimers.put(name, timer = new LatencyHistogram(name));
+				}
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Get a line of count and percentiles for each timer which has recorded, ordered by name.
+	 */
+	public static String dump() {
+		StringBuilder builder = new StringBuilder();
+		for (LatencyHistogram timer : new TreeMap<String, LatencyHistogram>(sTimers).values()) {
+			if (timer.getCount() > 0) {
+				builder.append(timer).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Log {@link #dump()} periodically on a daemon thread, the last periodic dump is replaced.
+	 *
+	 * @param periodMillis
+	 *            The period of dump in milliseconds
+	 */
+	public static synchronized void startDump(long periodMillis) {
+		stopDump();
+		if (sDumpExecutor == null) {
+			sDumpExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "MetricsDump");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		sDumpFuture = sDumpExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if (!Logger.isLoggable(Log.DEBUG)) {
+					return;
+				}
+				String dump = dump();
+				if (dump.length() > 0) {
+					Logger.d(Metrics.class, "Timers:\n" + dump);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the periodic dump, if it was started.
+	 */
+	public static synchronized void stopDump() {
+		if (sDumpFuture != null) {
+			sDumpFuture.cancel(false);
+			sDumpFuture = null;
+		}
+	}
+
+	/**
+	 * Clear the values of all timers.
+	 */
+	public static void reset() {
+		for (LatencyHistogram timer : sTimers.values()) {
+			timer.reset();
+		}
+	}
+}
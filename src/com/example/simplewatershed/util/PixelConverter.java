@@ -0,0 +1,22 @@
+package com.example.simplewatershed.util;
+
+/**
+ * Pixel format conversions over primitive arrays, without Android or OpenCV classes, so they can be benchmarked on a plain JVM.
+ */
+public class PixelConverter {
+	/**
+	 * Convert packed RGBA bytes, the layout of a 4 channel mat, to ARGB ints for Bitmap.setPixels().
+	 *
+	 * @param rgba
+	 *            The source pixels, 4 bytes per pixel
+	 * @param argb
+	 *            The destination pixels
+	 * @param pixels
+	 *            The number of pixels to convert
+	 */
+	public static void rgbaToArgb(byte[] rgba, int[] argb, int pixels) {
+		for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+			argb[i] = ((rgba[j + 3] & 0xff) << 24) | ((rgba[j] & 0xff) << 16) | ((rgba[j + 1] & 0xff) << 8) | (rgba[j + 2] & 0xff);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.example.simplewatershed.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Run-length encoding over pixels, as runs of [count(2 bytes), pixel(elemSize bytes)]. It suits sparse layers and masks, where most tiles are
+ * a few long runs of transparent or zero pixels.
+ */
+public class RunLengthCodec {
+	private static final int MAX_RUN = 0xffff;
+
+	/**
+	 * Get the size of output buffer for the worst case, which is every run with a single pixel.
+	 */
+	public static int maxEncodedLength(int length, int elemSize) {
+		return (length / elemSize) * (elemSize + 2);
+	}
+
+	/**
+	 * Encode the pixels.
+	 *
+	 * @param raw
+	 *            The packed pixels
+	 * @param length
+	 *            The number of bytes to encode, a multiple of elemSize
+	 * @param elemSize
+	 *            The bytes of a pixel
+	 * @param encoded
+	 *            The output buffer, at least {@link #maxEncodedLength(int, int)} bytes after offset
+	 * @param offset
+	 *            The offset in output buffer
+	 * @return The number of bytes written.
+	 */
+	public static int encode(byte[] raw, int length, int elemSize, byte[] encoded, int offset) {
+		int size = offset;
+		int i = 0;
+		while (i < length) {
+			int run = 1;
+			while (((i + (run * elemSize)) < length) && (run < MAX_RUN) && samePixel(raw, i, i + (run * elemSize), elemSize)) {
+				run++;
+			}
+			encoded[size++] = (byte) (run >> 8);
+			encoded[size++] = (byte) run;
+			System.arraycopy(raw, i, encoded, size, elemSize);
+			size += elemSize;
+			i += run * elemSize;
+		}
+		return size - offset;
+	}
+
+	/**
+	 * Encode the pixels at the position of the buffer, e.g. straight into a mapped file. It gives up as soon as the runs would be longer than
+	 * maxLength, the position is undefined then.
+	 *
+	 * @param raw
+	 *            The packed pixels
+	 * @param length
+	 *            The number of bytes to encode, a multiple of elemSize
+	 * @param elemSize
+	 *            The bytes of a pixel
+	 * @param encoded
+	 *            The output buffer, with at least maxLength bytes remaining
+	 * @param maxLength
+	 *            The max number of bytes to write
+	 * @return The number of bytes written, -1 if the runs don't fit in maxLength.
+	 */
+	public static int encode(byte[] raw, int length, int elemSize, ByteBuffer encoded, int maxLength) {
+		int size = 0;
+		int i = 0;
+		while (i < length) {
+			if ((size + 2 + elemSize) > maxLength) {
+				return -1;
+			}
+			int run = 1;
+			while (((i + (run * elemSize)) < length) && (run < MAX_RUN) && samePixel(raw, i, i + (run * elemSize), elemSize)) {
+				run++;
+			}
+			encoded.putShort((short) run);
+			encoded.put(raw, i, elemSize);
+			size += 2 + elemSize;
+			i += run * elemSize;
+		}
+		return size;
+	}
+
+	/**
+	 * Decode the pixels.
+	 *
+	 * @param encoded
+	 *            The runs
+	 * @param offset
+	 *            The offset of the first run
+	 * @param length
+	 *            The number of encoded bytes
+	 * @param elemSize
+	 *            The bytes of a pixel
+	 * @param raw
+	 *            The output buffer for packed pixels
+	 * @return The number of bytes decoded.
+	 */
+	public static int decode(byte[] encoded, int offset, int length, int elemSize, byte[] raw) {
+		int size = 0;
+		for (int i = offset; i < (offset + length); i += 2 + elemSize) {
+			int run = ((encoded[i] & 0xff) << 8) | (encoded[i + 1] & 0xff);
+			for (int j = 0; j < run; j++) {
+				System.arraycopy(encoded, i + 2, raw, size, elemSize);
+				size += elemSize;
+			}
+		}
+		return size;
+	}
+
+	private static boolean samePixel(byte[] buffer, int a, int b, int elemSize) {
+		for (int k = 0; k < elemSize; k++) {
+			if (buffer[a + k] != buffer[b + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
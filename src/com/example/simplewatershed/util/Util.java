@@ -5,9 +5,11 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.view.MotionEvent;
 import android.view.View;
@@ -18,17 +20,16 @@ import android.widget.ImageView.ScaleType;
 
 public class Util {
 	public static boolean LOG = true;
+	private static final LatencyHistogram sScaleTimer = Metrics.timer(Metrics.SCALE);
 
 	/**
-	 * Recycle bitmap in ImageView
+	 * Unbind the bitmap from ImageView, and put it into {@link BitmapPool} for the next bitmap with the same size
 	 */
 	public static void recycle(ImageView imageView) {
 		if ((BitmapDrawable) imageView.getDrawable() != null) {
 			Bitmap bitmap = ((BitmapDrawable) imageView.getDrawable()).getBitmap();
-			if ((bitmap != null) && !bitmap.isRecycled()) {
-				bitmap.recycle();
-			}
-			imageView.setImageBitmap(bitmap = null);
+			imageView.setImageBitmap(null);
+			BitmapPool.getInstance().put(bitmap);
 		}
 	}
 
@@ -79,20 +80,49 @@ public class Util {
 	 * @return The small bitmap with target size
 	 */
 	public static Bitmap getScaleBitmap(Bitmap bitmap, float dstW, float dstH, boolean recycle) {
-		Bitmap cloneBitmap = createMutableBitmap(bitmap);
+		return getScaleBitmap(bitmap, dstW, dstH, recycle, null);
+	}
 
-		android.graphics.Point smallSize = measureSmallSize(dstW, dstH, cloneBitmap.getWidth(), cloneBitmap.getHeight());
-		Bitmap smallBitmap = Bitmap.createScaledBitmap(cloneBitmap, smallSize.x, smallSize.y, false);
-		if (recycle && !bitmap.isRecycled()) {
-			bitmap.recycle();
+	/**
+	 * Get a bitmap with target size. The original is drawn straight to the target size in one filtered pass, into ARGB_8888 so no color depth
+	 * is lost.
+	 * 
+	 * @param bitmap
+	 *            The original bitmap
+	 * @param dstW
+	 *            The target width
+	 * @param dstH
+	 *            The target height
+	 * @param recycle
+	 *            true if recycle the origin, false otherwise
+	 * @param reuse
+	 *            The bitmap to draw into if it's a mutable ARGB_8888 bitmap with the target size, e.g. the one of the last load. null to take
+	 *            one from {@link BitmapPool}. It's not recycled if unused.
+	 * @return The small bitmap with target size
+	 */
+	public static Bitmap getScaleBitmap(Bitmap bitmap, float dstW, float dstH, boolean recycle, Bitmap reuse) {
+		long startTime = System.nanoTime();
+		android.graphics.Point smallSize = measureSmallSize(dstW, dstH, bitmap.getWidth(), bitmap.getHeight());
+		Bitmap smallBitmap;
+		if ((reuse != null) && (reuse != bitmap) && !reuse.isRecycled() && reuse.isMutable() && (reuse.getConfig() == Config.ARGB_8888)
+				&& (reuse.getWidth() == smallSize.x) && (reuse.getHeight() == smallSize.y)) {
+			smallBitmap = reuse;
+			smallBitmap.eraseColor(Color.TRANSPARENT);
+		} else {
+			smallBitmap = BitmapPool.getInstance().get(smallSize.x, smallSize.y, Config.ARGB_8888);
+		}
+		Canvas canvas = new Canvas(smallBitmap);
+		canvas.drawBitmap(bitmap, null, new Rect(0, 0, smallSize.x, smallSize.y), new Paint(Paint.FILTER_BITMAP_FLAG));
+		if (recycle) {
+			BitmapPool.getInstance().put(bitmap);
 		}
-		cloneBitmap.recycle();
+		sScaleTimer.recordSince(startTime);
 
 		return smallBitmap;
 	}
 
 	public static Bitmap createMutableBitmap(Bitmap bitmap) {
-		Bitmap mutableBitmap = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Config.ARGB_4444);
+		Bitmap mutableBitmap = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), getConfig(bitmap));
 		Canvas canvas = new Canvas(mutableBitmap);
 		canvas.drawBitmap(bitmap, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
 
@@ -115,13 +145,13 @@ public class Util {
 		if ((width == bitmap.getWidth()) && (height == bitmap.getHeight())) {
 			return bitmap;
 		}
-		Bitmap target = Bitmap.createBitmap(width, height, getConfig(bitmap));
+		Bitmap target = BitmapPool.getInstance().get(width, height, getConfig(bitmap));
 		Canvas canvas = new Canvas(target);
 		canvas.scale(scale, scale);
 		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
 		canvas.drawBitmap(bitmap, 0, 0, paint);
 		if (recycle) {
-			bitmap.recycle();
+			BitmapPool.getInstance().put(bitmap);
 		}
 		return target;
 	}
@@ -145,8 +175,11 @@ public class Util {
 	 */
 	public static Bitmap scaleBitmapByWidth(Bitmap bitmap, int width) {
 		float scale = (float) bitmap.getWidth() / (float) width;
-		Bitmap newBitmap = Bitmap.createScaledBitmap(bitmap, width, (int) (bitmap.getHeight() / scale), false);
-		bitmap.recycle();
+		int height = (int) (bitmap.getHeight() / scale);
+		Bitmap newBitmap = BitmapPool.getInstance().get(width, height, getConfig(bitmap));
+		Canvas canvas = new Canvas(newBitmap);
+		canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height), null);
+		BitmapPool.getInstance().put(bitmap);
 		return newBitmap;
 	}
 
@@ -0,0 +1,277 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import com.example.simplewatershed.util.RunLengthCodec;
+
+/**
+ * Undo/redo history of layers, each step only keeps the changed tiles before and after the change.<br>
+ * Tiles are compressed by run-length encoding over pixels, which suits the sparse Line/Preview layers. When the total size of steps exceeds
+ * the byte budget, the oldest steps are evicted first.<br>
+ * Each step can be taken as a token by {@link #getLastStep()}, to check later by {@link #isApplied(Object)} whether it has been undone.<br>
+ * <strong>Usage:</strong> {@link #beginStep()}, {@link #addTile(int, Rect, Mat, Mat)} for each changed tile, then {@link #endStep()}.
+ */
+public class EditHistory {
+	public static final long DEFAULT_BYTE_BUDGET = 16 * 1024 * 1024;
+
+	private Mat[] mLayers;
+	private long mByteBudget;
+	private long mByteCount;
+
+	private LinkedList<Step> mUndoSteps;
+	private LinkedList<Step> mRedoSteps;
+	private Step mStep;
+
+	// Scratch buffers for encoding/decoding a tile
+	private byte[] mRawBuffer;
+	private byte[] mEncodeBuffer;
+
+	public EditHistory() {
+		mByteBudget = DEFAULT_BYTE_BUDGET;
+		mUndoSteps = new LinkedList<Step>();
+		mRedoSteps = new LinkedList<Step>();
+	}
+
+	/**
+	 * Bind new layers and clear all steps.
+	 *
+	 * @param layers
+	 *            Layers with the same size, the index of each layer is used as its id
+	 */
+	public void reset(Mat... layers) {
+		clear();
+		mLayers = layers;
+	}
+
+	/**
+	 * Whether changes of the layer are recorded, layers which were not bound by {@link #reset(Mat...)} are not.
+	 */
+	public boolean isTracked(int layer) {
+		return (mLayers != null) && (layer >= 0) && (layer < mLayers.length);
+	}
+
+	/**
+	 * Start recording a new step, all redo steps are dropped.
+	 */
+	public void beginStep() {
+		mStep = new Step();
+	}
+
+	/**
+	 * Record a changed tile of the current step.
+	 *
+	 * @param layer
+	 *            The id of layer
+	 * @param rect
+	 *            The area of the tile in layer
+	 * @param before
+	 *            The mat contains the tile before the change at (0, 0)
+	 * @param after
+	 *            The mat contains the tile after the change at (0, 0)
+	 */
+	public void addTile(int layer, Rect rect, Mat before, Mat after) {
+		TileDelta delta = new TileDelta(layer, rect);
+		delta.mBefore = encode(before, rect.width, rect.height);
+		delta.mAfter = encode(after, rect.width, rect.height);
+		mStep.mTiles.add(delta);
+		mStep.mByteCount += delta.mBefore.length + delta.mAfter.length;
+	}
+
+	/**
+	 * Finish the current step, and evict the oldest steps if the budget is exceeded.
+	 */
+	public void endStep() {
+		if ((mStep == null) || mStep.mTiles.isEmpty()) {
+			mStep = null;
+			return;
+		}
+		for (Step step : mRedoSteps) {
+			mByteCount -= step.mByteCount;
+		}
+		mRedoSteps.clear();
+		mStep.mApplied = true;
+		mUndoSteps.addLast(mStep);
+		mByteCount += mStep.mByteCount;
+		mStep = null;
+		trim();
+	}
+
+	/**
+	 * Restore layers to the state before the last step.
+	 *
+	 * @return The {@link Rect} contains all restored tiles, null if there is nothing to undo.
+	 */
+	public Rect undo() {
+		if (mUndoSteps.isEmpty()) {
+			return null;
+		}
+		Step step = mUndoSteps.removeLast();
+		step.mApplied = false;
+		mRedoSteps.addLast(step);
+		return apply(step, true);
+	}
+
+	/**
+	 * Apply the last undone step again.
+	 *
+	 * @return The {@link Rect} contains all restored tiles, null if there is nothing to redo.
+	 */
+	public Rect redo() {
+		if (mRedoSteps.isEmpty()) {
+			return null;
+		}
+		Step step = mRedoSteps.removeLast();
+		step.mApplied = true;
+		mUndoSteps.addLast(step);
+		return apply(step, false);
+	}
+
+	public boolean canUndo() {
+		return !mUndoSteps.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !mRedoSteps.isEmpty();
+	}
+
+	/**
+	 * Get the last applied step as a token, e.g. to tag work which was started by it.
+	 *
+	 * @return The token, null if there is no step.
+	 */
+	public Object getLastStep() {
+		return mUndoSteps.peekLast();
+	}
+
+	/**
+	 * Whether the step from {@link #getLastStep()} is still applied. It's false once the step is undone, even if the redo steps are dropped
+	 * later, and true again if it's redone. Steps evicted by the budget are still applied.
+	 *
+	 * @param step
+	 *            The token, null for the state before any step, which is always applied
+	 */
+	public boolean isApplied(Object step) {
+		return (step == null) || ((Step) step).mApplied;
+	}
+
+	/**
+	 * Set the max bytes of all steps, the oldest steps are evicted immediately if it's exceeded.
+	 */
+	public void setByteBudget(long byteBudget) {
+		mByteBudget = byteBudget;
+		trim();
+	}
+
+	public long getByteBudget() {
+		return mByteBudget;
+	}
+
+	/**
+	 * Get the compressed bytes of all steps
+	 */
+	public long getByteCount() {
+		return mByteCount;
+	}
+
+	/**
+	 * Drop all steps.
+	 */
+	public void clear() {
+		// Tokens of the old steps must not be taken as applied to the new layers
+		for (Step step : mUndoSteps) {
+			step.mApplied = false;
+		}
+		mUndoSteps.clear();
+		mRedoSteps.clear();
+		mStep = null;
+		mByteCount = 0;
+	}
+
+	/**
+	 * Evict the oldest undo steps first, redo steps are kept as long as there's one.
+	 */
+	private void trim() {
+		while ((mByteCount > mByteBudget) && !mUndoSteps.isEmpty()) {
+			mByteCount -= mUndoSteps.removeFirst().mByteCount;
+		}
+		while ((mByteCount > mByteBudget) && !mRedoSteps.isEmpty()) {
+			mByteCount -= mRedoSteps.removeFirst().mByteCount;
+		}
+	}
+
+	private Rect apply(Step step, boolean undo) {
+		int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = 0, bottom = 0;
+		// Undo in the reverse order, in case a tile was recorded more than once
+		for (int i = 0; i < step.mTiles.size(); i++) {
+			TileDelta delta = step.mTiles.get(undo ? step.mTiles.size() - 1 - i : i);
+			Rect rect = delta.mRect;
+			Mat dst = mLayers[delta.mLayer].submat(rect);
+			decode(undo ? delta.mBefore : delta.mAfter, dst, rect.width, rect.height);
+			dst.release();
+
+			left = Math.min(left, rect.x);
+			top = Math.min(top, rect.y);
+			right = Math.max(right, rect.x + rect.width);
+			bottom = Math.max(bottom, rect.y + rect.height);
+		}
+		return new Rect(left, top, right - left, bottom - top);
+	}
+
+	/**
+	 * Encode the tile with {@link RunLengthCodec}.
+	 */
+	private byte[] encode(Mat mat, int width, int height) {
+		int elemSize = (int) mat.elemSize();
+		int length = width * height * elemSize;
+		if ((mRawBuffer == null) || (mRawBuffer.length < length)) {
+			// Mat.get()/put() require a multiple of channels
+			mRawBuffer = new byte[(length + 3) & ~3];
+		}
+		int maxEncodeLength = RunLengthCodec.maxEncodedLength(length, elemSize);
+		if ((mEncodeBuffer == null) || (mEncodeBuffer.length < maxEncodeLength)) {
+			mEncodeBuffer = new byte[maxEncodeLength];
+		}
+		Mat tile = mat.submat(0, height, 0, width);
+		tile.get(0, 0, mRawBuffer);
+		tile.release();
+
+		int size = RunLengthCodec.encode(mRawBuffer, length, elemSize, mEncodeBuffer, 0);
+		byte[] encoded = new byte[size];
+		System.arraycopy(mEncodeBuffer, 0, encoded, 0, size);
+		return encoded;
+	}
+
+	private void decode(byte[] encoded, Mat dst, int width, int height) {
+		int elemSize = (int) dst.elemSize();
+		int length = width * height * elemSize;
+		if ((mRawBuffer == null) || (mRawBuffer.length < length)) {
+			// Mat.get()/put() require a multiple of channels
+			mRawBuffer = new byte[(length + 3) & ~3];
+		}
+		RunLengthCodec.decode(encoded, 0, encoded.length, elemSize, mRawBuffer);
+		dst.put(0, 0, mRawBuffer);
+	}
+
+	private static class Step {
+		private final List<TileDelta> mTiles = new ArrayList<TileDelta>();
+		private long mByteCount;
+		private boolean mApplied;
+	}
+
+	private static class TileDelta {
+		private final int mLayer;
+		private final Rect mRect;
+		private byte[] mBefore;
+		private byte[] mAfter;
+
+		private TileDelta(int layer, Rect rect) {
+			mLayer = layer;
+			mRect = rect;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.example.simplewatershed.view.imagecontainer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -7,7 +9,6 @@ import org.opencv.android.Utils;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.imgproc.Imgproc;
@@ -16,7 +17,9 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Matrix;
+import android.graphics.drawable.BitmapDrawable;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageView;
@@ -25,10 +28,23 @@ import android.widget.RelativeLayout;
 import android.widget.Toast;
 
 import com.example.simplewatershed.R;
-import com.example.simplewatershed.util.Util;
+import com.example.simplewatershed.segmentation.MaskBounds;
+import com.example.simplewatershed.segmentation.MatArena;
+import com.example.simplewatershed.segmentation.OpenCvWatershedEngine;
+import com.example.simplewatershed.segmentation.TiledWatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+import com.example.simplewatershed.util.BitmapPool;
+import com.example.simplewatershed.util.LatencyHistogram;
+import com.example.simplewatershed.util.Logger;
+import com.example.simplewatershed.util.Metrics;
 import com.example.simplewatershed.util.Util.ScaledImageViewTouchListener;
+import com.example.simplewatershed.util.Util;
+
+public class ImageContainer extends RelativeLayout implements SegmentationWorker.OnSegmentedListener {
+	private static final LatencyHistogram sRasterizeTimer = Metrics.timer(Metrics.RASTERIZE);
 
-public class ImageContainer extends RelativeLayout {
 	// General
 	private ImageTouchDispatcher mImageTouchDispatcher;
 	private int mThickness;
@@ -55,13 +71,41 @@ public class ImageContainer extends RelativeLayout {
 	// PreviewImage
 	private Mat mTransMatForPreview;
 	private ImageView mPreviewImage;
+	private MatSurface mPreviewSurface;
 
 	// LineImage
 	private Mat mTransMatForLine;
 	private ImageView mLineImage;
+	private MatSurface mLineSurface;
 
 	// Watershed
 	private Mat mWatershedMask;
+	// Parameters of watershed, kept across images
+	private WatershedConfig mWatershedConfig;
+	// Images derived from mOriginMat, which is owned by the cache
+	private SourceImageCache mSourceCache;
+	// Run watershed off the UI thread
+	private SegmentationWorker mSegmentationWorker;
+	// Scratch mats of watershed and the snapshots of markers, reused across strokes
+	private MatArena mMatArena;
+
+	// Keep the pre-stroke state of Line/Preview/Watershed layers
+	private static final int LAYER_LINE = 0;
+	private static final int LAYER_PREVIEW = 1;
+	// Only kept for a cancelled stroke, the mask is reset after each watershed so it's not part of history
+	private static final int LAYER_MASK = 2;
+	private StrokeTransaction mStrokeTransaction;
+	// Segmentation results arrived during a stroke, applied after it
+	private List<SegmentationResult> mPendingSegmentations;
+	// Bounds of markers drawn since the last watershed
+	private android.graphics.Rect mMarkerRect;
+
+	// Undo/redo of strokes and segmentation results
+	private EditHistory mEditHistory;
+	// The running bounds of the cutout on PreviewImage
+	private MaskBounds mPreviewBounds;
+	// Paint segmentation results onto PreviewImage, buffers are kept across results
+	private PreviewCompositor mPreviewCompositor;
 
 	public ImageContainer(Context context, AttributeSet attrs) {
 		super(context, attrs);
@@ -86,6 +130,9 @@ public class ImageContainer extends RelativeLayout {
 		mTransX = 0;
 		mTransY = 0;
 		mMatrix = new Matrix();
+		if (mWatershedConfig == null) {
+			mWatershedConfig = new WatershedConfig();
+		}
 	}
 
 	/**
@@ -94,27 +141,73 @@ public class ImageContainer extends RelativeLayout {
 	public void initView() {
 		mBaseImage = (ImageView) findViewById(R.id.base_image);
 		setOnTouchListener(mImageTouchDispatcher = new ImageTouchDispatcher());
+		mSegmentationWorker = new SegmentationWorker(this);
+		mWatershedConfig.setArena(mMatArena = new MatArena());
+		// Large ROIs are flooded in tiles on all cores, an ROI within one tile is flooded as it is
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (cores > 1) {
+			setWatershedEngine(WatershedConfig.newEngine(WatershedConfig.ENGINE_TILED_OPENCV, cores));
+		}
+		mStrokeTransaction = new StrokeTransaction();
+		mPendingSegmentations = new ArrayList<SegmentationResult>();
+		mMarkerRect = new android.graphics.Rect();
+		mEditHistory = new EditHistory();
+		mPreviewBounds = new MaskBounds();
+		mPreviewCompositor = new PreviewCompositor(ImageProcessor.sRed);
 	}
 
 	public void setImage(Bitmap bitmap) {
 		initConfigure();
 
-		bitmap = Util.getScaleBitmap(bitmap, ((View) getParent()).getWidth(), ((View) getParent()).getHeight(), true);
+		// Scale only if the bitmap was not decoded with the target size, e.g. by BitmapLoader
+		android.graphics.Point smallSize = Util.measureSmallSize(getMaxImageWidth(), getMaxImageHeight(), bitmap.getWidth(), bitmap.getHeight());
+		if ((smallSize.x != bitmap.getWidth()) || (smallSize.y != bitmap.getHeight())) {
+			// Draw into the bitmap of the last image if it has the same size, instead of allocating another one
+			bitmap = Util.getScaleBitmap(bitmap, getMaxImageWidth(), getMaxImageHeight(), true, getBaseBitmap());
+		}
+		initImage(bitmap, null);
+	}
 
-		// BaseImage
-		if (mBaseImage != null) {
-			ImageProcessor.recycle(mBaseImage);
+	private Bitmap getBaseBitmap() {
+		if ((mBaseImage == null) || !(mBaseImage.getDrawable() instanceof BitmapDrawable)) {
+			return null;
+		}
+		return ((BitmapDrawable) mBaseImage.getDrawable()).getBitmap();
+	}
+
+	/**
+	 * Show the bitmap as it is, and create all layers with its size.
+	 * 
+	 * @param bitmap
+	 *            The image to show
+	 * @param originMat
+	 *            The 3 channel mat of bitmap, owned by the container after this call. null to convert from bitmap.
+	 */
+	private void initImage(Bitmap bitmap, Mat originMat) {
+		// BaseImage, keep the bitmap if it was reused for the new image
+		if ((mBaseImage != null) && (getBaseBitmap() != bitmap)) {
+			Util.recycle(mBaseImage);
 		}
 		mBaseImage.setImageBitmap(bitmap);
 		mBaseImage.setImageMatrix(new Matrix());
 
-		if (mOriginMat != null) {
-			mOriginMat.release();
+		// Results of the last image are useless now, and the worker may still be reading the old mat
+		mSegmentationWorker.cancel();
+		if (mSourceCache != null) {
+			mSegmentationWorker.release(mSourceCache);
 		}
-		Utils.bitmapToMat(bitmap, mOriginMat = new Mat());
+		// Scratch mats of the last image have the wrong size
+		mMatArena.clear();
+		if (originMat != null) {
+			mOriginMat = originMat;
+		} else {
+			Utils.bitmapToMat(bitmap, mOriginMat = new Mat());
 
-		// Convert to 3 channel for later usage
-		Imgproc.cvtColor(mOriginMat, mOriginMat, Imgproc.COLOR_BGRA2BGR);
+			// Convert to 3 channel for later usage
+			Imgproc.cvtColor(mOriginMat, mOriginMat, Imgproc.COLOR_BGRA2BGR);
+		}
+		mSourceCache = new SourceImageCache(mOriginMat);
+		prefetchSourceCache();
 
 		// Initital layout params for Line/PreviewImage
 		LayoutParams imageLayoutParams = (LayoutParams) mBaseImage.getLayoutParams();
@@ -123,7 +216,7 @@ public class ImageContainer extends RelativeLayout {
 
 		// PreviewImage
 		if (mPreviewImage != null) {
-			Util.recycle(mPreviewImage);
+			mPreviewSurface.recycle();
 			mPreviewImage.setLayoutParams(imageLayoutParams);
 		} else {
 			// Add PreviewImage
@@ -138,11 +231,13 @@ public class ImageContainer extends RelativeLayout {
 		} // Generate PreviewImage's transparent background mat
 		mTransMatForPreview = new Mat(mOriginMat.size(), CvType.CV_8UC4);
 		mTransMatForPreview.setTo(ImageProcessor.sTrans);
-		ImageProcessor.showMatAsImage(mTransMatForPreview, mPreviewImage);
+		// The bitmap is allocated only once for each image, and updated in place while drawing
+		mPreviewSurface = new MatSurface(mPreviewImage, mOriginMat.width(), mOriginMat.height());
+		mPreviewSurface.update(mTransMatForPreview);
 
 		// LineImage
 		if (mLineImage != null) {
-			Util.recycle(mLineImage);
+			mLineSurface.recycle();
 			mLineImage.setLayoutParams(imageLayoutParams);
 		} else {
 			// Add LineImage
@@ -158,7 +253,9 @@ public class ImageContainer extends RelativeLayout {
 		// Generate lineImage's transparent background mat
 		mTransMatForLine = new Mat(mOriginMat.size(), CvType.CV_8UC4);
 		mTransMatForLine.setTo(ImageProcessor.sTrans);
-		ImageProcessor.showMatAsImage(mTransMatForLine, mLineImage);
+		// The bitmap is allocated only once for each image, and updated in place while drawing
+		mLineSurface = new MatSurface(mLineImage, mOriginMat.width(), mOriginMat.height());
+		mLineSurface.update(mTransMatForLine);
 
 		// Watershed
 		if (mWatershedMask != null) {
@@ -168,9 +265,14 @@ public class ImageContainer extends RelativeLayout {
 		mWatershedMask = new Mat(mOriginMat.size(), CvType.CV_8UC1);
 		mWatershedMask.setTo(ImageProcessor.sBlack);
 
-		// Push the initial state of cutout into history
-		Bitmap tmpBitmap = Bitmap.createBitmap(mOriginMat.width(), mOriginMat.height(), Config.ARGB_8888);
-		Utils.matToBitmap(mTransMatForLine, tmpBitmap);
+		// The order should be the same as LAYER_LINE/LAYER_PREVIEW/LAYER_MASK
+		mStrokeTransaction.reset(mTransMatForLine, mTransMatForPreview, mWatershedMask);
+		releasePendingSegmentations();
+		mMarkerRect.setEmpty();
+
+		// The initial state of cutout is the base of history, markers in the watershed mask only live until the next watershed
+		mEditHistory.reset(mTransMatForLine, mTransMatForPreview);
+		mPreviewBounds.reset(mOriginMat.width(), mOriginMat.height());
 	}
 
 	// ============================================================
@@ -181,11 +283,14 @@ public class ImageContainer extends RelativeLayout {
 		mImageTouchDispatcher.onDestroy();
 		setOnTouchListener(mImageTouchDispatcher = null);
 
-		// BaseImage
-		if (mOriginMat != null) {
-			mOriginMat.release();
-			mOriginMat = null;
+		// Watershed worker, the source mat is released with its cache on the worker after the running job
+		if (mSourceCache != null) {
+			mSegmentationWorker.release(mSourceCache);
+			mSourceCache = null;
 		}
+		mOriginMat = null;
+		releaseWatershedEngine();
+		mSegmentationWorker.shutdown();
 
 		if (mBaseImage != null) {
 			Util.recycle(mBaseImage);
@@ -197,10 +302,11 @@ public class ImageContainer extends RelativeLayout {
 			mTransMatForPreview.release();
 			mTransMatForPreview = null;
 		}
-		if (mPreviewImage != null) {
-			Util.recycle(mPreviewImage);
-			mPreviewImage = null;
+		if (mPreviewSurface != null) {
+			mPreviewSurface.recycle();
+			mPreviewSurface = null;
 		}
+		mPreviewImage = null;
 
 		// LineImage
 		if (mTransMatForLine != null) {
@@ -208,10 +314,11 @@ public class ImageContainer extends RelativeLayout {
 			mTransMatForLine = null;
 		}
 
-		if (mLineImage != null) {
-			Util.recycle(mLineImage);
-			mLineImage = null;
+		if (mLineSurface != null) {
+			mLineSurface.recycle();
+			mLineSurface = null;
 		}
+		mLineImage = null;
 
 		// CutOutImage
 		if (mLineImage != null) {
@@ -220,11 +327,19 @@ public class ImageContainer extends RelativeLayout {
 		}
 
 		// Watershed
+		mStrokeTransaction.release();
+		releasePendingSegmentations();
+		mEditHistory.clear();
+		mPreviewBounds.release();
+		mPreviewCompositor.release();
 		if (mWatershedMask != null) {
 			mWatershedMask.release();
 			mWatershedMask = null;
 		}
+		Logger.d(getClass(), "Mat arena, %s", mMatArena.toString());
+		mMatArena.release();
 		removeAllViews();
+		Logger.d(getClass(), "Bitmap pool, %s", BitmapPool.getInstance());
 	}
 
 	// ============================================================
@@ -250,6 +365,7 @@ public class ImageContainer extends RelativeLayout {
 		}
 
 		public void onDestroy() {
+			mContainerTouchListener.discardPendingPoints();
 			mContainerTouchListener = null;
 			mScaledImageViewTouchListener.onDestroy();
 			mScaledImageViewTouchListener = null;
@@ -288,7 +404,15 @@ public class ImageContainer extends RelativeLayout {
 					result = mScaledImageViewTouchListener.onTouch(v, event);
 				}
 				break;
+			case MotionEvent.ACTION_CANCEL:
+				if (!ZOOM) {
+					result = mContainerTouchListener.onTouch(v, event);
+				}
+				break;
 			case MotionEvent.ACTION_POINTER_DOWN:
+				// The first finger was not drawing, drop what it has drawn
+				mContainerTouchListener.discardPendingPoints();
+				cancelStroke();
 				ZOOM = true;
 				result = mScaledImageViewTouchListener.onTouch(v, event);
 				break;
@@ -302,146 +426,432 @@ public class ImageContainer extends RelativeLayout {
 	}
 
 	/**
-	 * For FG/BG/Eraser event
+	 * For FG/BG/Eraser event<br>
+	 * Touch points, including the historical ones batched in each MotionEvent, are only queued on input. They are drawn and uploaded once per
+	 * display frame by a Choreographer callback, so the Line/Preview bitmaps get at most one upload per vsync whatever the touch sampling rate.
 	 */
 	private class ContainerTouchListener implements OnTouchListener {
 		private Point prePoint;
 		private Point curPoint;
+		// Bounds of the current segment
+		private android.graphics.Rect mSegmentRect;
+		// Bounds of the segments drawn in the current frame
+		private android.graphics.Rect mFrameRect;
+		// Queued points in image coordinates, as x, y pairs
+		private float[] mPendingPoints;
+		private int mPendingCount;
+		private boolean mFrameScheduled;
+		private Choreographer.FrameCallback mFrameCallback;
 
 		public ContainerTouchListener() {
 			super();
 			prePoint = new Point(0.0, 0.0);
 			curPoint = new Point(0.0, 0.0);
+			mSegmentRect = new android.graphics.Rect();
+			mFrameRect = new android.graphics.Rect();
+			mPendingPoints = new float[64];
+			mFrameCallback = new Choreographer.FrameCallback() {
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					mFrameScheduled = false;
+					drawPendingPoints();
+				}
+			};
 		}
 
 		@Override
 		public boolean onTouch(View v, MotionEvent event) {
 			switch (event.getAction()) {
 			case MotionEvent.ACTION_DOWN:
-				mTransMatForLine = mTransMatForLine.clone();
-				mTransMatForPreview = mTransMatForPreview.clone();
-				mWatershedMask = mWatershedMask.clone();
+				discardPendingPoints();
+				mStrokeTransaction.begin();
 
 				prePoint.x = (event.getX() - mTransX) / mScale;
 				prePoint.y = (event.getY() - mTransY) / mScale;
 				break;
 			case MotionEvent.ACTION_MOVE:
-				curPoint.x = (event.getX() - mTransX) / mScale;
-				curPoint.y = (event.getY() - mTransY) / mScale;
+				queuePoints(event);
+				if (!mFrameScheduled) {
+					mFrameScheduled = true;
+					Choreographer.getInstance().postFrameCallback(mFrameCallback);
+				}
+				break;
+			case MotionEvent.ACTION_UP:
+				if (mStrokeTransaction.isOpen()) {
+					// Finish the stroke now instead of waiting for the next frame
+					queuePoints(event);
+					drawPendingPoints();
+					mStrokeTransaction.commit(mEditHistory);
+					if ((mState == STATE.FG) || (mState == STATE.ERASER)) {
+						requestWatershed();
+					}
+					applyPendingSegmentations();
+				}
+				discardPendingPoints();
+				break;
+			case MotionEvent.ACTION_CANCEL:
+				discardPendingPoints();
+				cancelStroke();
+				break;
+			}
+			return true;
+		}
+
+		/**
+		 * Drop the points not drawn yet, e.g. when the stroke is cancelled.
+		 */
+		public void discardPendingPoints() {
+			mPendingCount = 0;
+			if (mFrameScheduled) {
+				mFrameScheduled = false;
+				Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+			}
+		}
+
+		/**
+		 * Queue the historical points of the event in order, then its current point.
+		 */
+		private void queuePoints(MotionEvent event) {
+			int historySize = event.getHistorySize();
+			for (int i = 0; i < historySize; i++) {
+				queuePoint(event.getHistoricalX(i), event.getHistoricalY(i));
+			}
+			queuePoint(event.getX(), event.getY());
+		}
+
+		private void queuePoint(float x, float y) {
+			if ((mPendingCount + 2) > mPendingPoints.length) {
+				float[] points = new float[mPendingPoints.length * 2];
+				System.arraycopy(mPendingPoints, 0, points, 0, mPendingCount);
+				mPendingPoints = points;
+			}
+			mPendingPoints[mPendingCount++] = (x - mTransX) / mScale;
+			mPendingPoints[mPendingCount++] = (y - mTransY) / mScale;
+		}
+
+		/**
+		 * Draw the segments between queued points, then upload the changed area of each layer once.
+		 */
+		private void drawPendingPoints() {
+			long startTime = System.nanoTime();
+			mFrameRect.setEmpty();
+			for (int i = 0; i < mPendingCount; i += 2) {
+				curPoint.x = mPendingPoints[i];
+				curPoint.y = mPendingPoints[i + 1];
 
 				if (isMove()) {
 					if (mState == STATE.FG) {
+						setSegmentRect(mThickness);
+						touchLayer(LAYER_LINE);
+						touchLayer(LAYER_MASK);
 						Core.line(mTransMatForLine, prePoint, curPoint, ImageProcessor.sWhite, mThickness, Core.LINE_8, 0);
 						Core.line(mWatershedMask, prePoint, curPoint, ImageProcessor.sForeground, mThickness, Core.LINE_8, 0);
+						mMarkerRect.union(mSegmentRect);
+						markSegmentDirty(mLineSurface);
+						mFrameRect.union(mSegmentRect);
 					} else if (mState == STATE.ERASER) {
+						setSegmentRect(mEraserThickness);
+						touchLayer(LAYER_LINE);
+						touchLayer(LAYER_PREVIEW);
 						Core.line(mTransMatForLine, prePoint, curPoint, ImageProcessor.sTrans, mEraserThickness, Core.LINE_8, 0);
 						Core.line(mTransMatForPreview, prePoint, curPoint, ImageProcessor.sTrans, mEraserThickness, Core.LINE_8, 0);
-						ImageProcessor.showMatAsImage(mTransMatForPreview, mPreviewImage);
+						markSegmentDirty(mLineSurface);
+						markSegmentDirty(mPreviewSurface);
+						mFrameRect.union(mSegmentRect);
 					}
-					ImageProcessor.showMatAsImage(mTransMatForLine, mLineImage);
 
 					prePoint.x = curPoint.x;
 					prePoint.y = curPoint.y;
 				}
+			}
+			mPendingCount = 0;
 
-				break;
-			case MotionEvent.ACTION_UP:
-				if ((mState == STATE.FG) || (mState == STATE.ERASER)) {
-					watershed();
-					getWatershedMaskRect();
-				}
-				break;
+			if (mFrameRect.isEmpty()) {
+				return;
 			}
-			return true;
+			sRasterizeTimer.recordSince(startTime);
+			if (mState == STATE.ERASER) {
+				mPreviewSurface.flush(mTransMatForPreview);
+				mPreviewBounds.update(mTransMatForPreview, mFrameRect.left, mFrameRect.top, mFrameRect.right, mFrameRect.bottom);
+			}
+			mLineSurface.flush(mTransMatForLine);
 		}
 
 		public boolean isMove() {
 			return (Math.abs(curPoint.x - prePoint.x) >= 10) || (Math.abs(curPoint.y - prePoint.y) >= 10);
 		}
+
+		/**
+		 * Set the bounds of the segment between prePoint and curPoint, grown by the thickness of line.
+		 */
+		private void setSegmentRect(int thickness) {
+			int space = (thickness / 2) + 2;
+			mSegmentRect.set((int) Math.floor(Math.min(prePoint.x, curPoint.x)) - space, (int) Math.floor(Math.min(prePoint.y, curPoint.y)) - space,
+					(int) Math.ceil(Math.max(prePoint.x, curPoint.x)) + space, (int) Math.ceil(Math.max(prePoint.y, curPoint.y)) + space);
+		}
+
+		private void touchLayer(int layer) {
+			mStrokeTransaction.touch(layer, mSegmentRect.left, mSegmentRect.top, mSegmentRect.right, mSegmentRect.bottom);
+		}
+
+		private void markSegmentDirty(MatSurface surface) {
+			surface.markDirty(mSegmentRect.left, mSegmentRect.top, mSegmentRect.right, mSegmentRect.bottom);
+		}
 	}
 
 	// ============================================================
 	// Main functions
+	/**
+	 * Run watershed with current markers synchronously on the calling thread, and show the result on PreviewImage.
+	 */
 	public Mat watershed() {
-		Mat resultOld = new Mat();
-		Mat resultNew = new Mat(mWatershedMask.size(), CvType.CV_8U, ImageProcessor.sBlack);
-
-		// Find user's forground contour
-		Mat foreground = mWatershedMask.clone();
-		Core.inRange(foreground, ImageProcessor.sForeground, ImageProcessor.sForeground, foreground);
-		List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-		Imgproc.findContours(foreground, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, new Point(0, 0));
-
-		// Simulate the edge of foreground
-		if (contours.size() > 0) {
-			contours = ImageProcessor.combineContour(contours);
-
-			Rect rect = Imgproc.boundingRect(contours.get(0));
-			// Core.rectangle(mImageContainer.getTransdMatForLine(), new Point(rect.x, rect.y), new Point(rect.x + rect.width, rect.y + rect.height),
-			// sWhite);
-			// ImageProcessor.showMatAsImage(mImageContainer.getTransdMatForLine(), mImageContainer.getLineImage());
-			double i = 0;
-			double distance = 5;
-			double interval = mThickness;
-			double space;
-
-			// Set timer
-			double startTime, endTime, totTime;
-			startTime = System.currentTimeMillis();
-			// Start iterate procedure to find the minimum background bounds
-			do {
-				resultOld.release();
-				resultOld = resultNew.clone();
-
-				resultNew.setTo(ImageProcessor.sBlack);
-				space = (i + distance) * interval;
-				Point lt = new Point(rect.x - space, rect.y - space);
-				Point br = new Point(rect.x + rect.width + space, rect.y + rect.height + space);
-				Core.polylines(resultNew, contours, false, ImageProcessor.sForeground, mThickness);
-				Core.rectangle(resultNew, lt, br, ImageProcessor.sBackground, mThickness);
-
-				// Convert to 32SC1
-				resultNew.convertTo(resultNew, CvType.CV_32S);
-
-				// Watershed
-				Imgproc.watershed(mOriginMat, resultNew);
-
-				// Convert watershed result back to 8U
-				resultNew.convertTo(resultNew, CvType.CV_8U);
-
-				// Filter out the foreground and filled with white
-				Core.compare(resultNew, ImageProcessor.sForeground, resultNew, Core.CMP_EQ);
-
-				i++;
-				if (i == 2) {
-					break;
+		Rect bounds = new Rect();
+		Mat foreground = ImageProcessor.segment(mSourceCache, mWatershedMask, getWatershedConfig(), bounds, null);
+
+		applySegmentation(foreground, WatershedSegmenter.unionRect(bounds, takeMarkerBounds()), null);
+
+		// Reset the watershed mask
+		mWatershedMask.setTo(ImageProcessor.sTrans);
+
+		return mTransMatForPreview;
+	}
+
+	/**
+	 * Hand a snapshot of current markers to {@link SegmentationWorker}, the result will be shown on PreviewImage when it's ready, unless the
+	 * last step of history has been undone by then.
+	 */
+	public void requestWatershed() {
+		mSegmentationWorker.submit(mSourceCache, takeMarkerSnapshot(), takeMarkerBounds(), getWatershedConfig(), mEditHistory.getLastStep());
+
+		// Markers have been taken by the worker, reset the watershed mask for the next stroke
+		mWatershedMask.setTo(ImageProcessor.sTrans);
+	}
+
+	/**
+	 * Copy the current markers into a mat from the arena, the worker recycles it to the arena after watershed.
+	 */
+	private Mat takeMarkerSnapshot() {
+		Mat markers = mMatArena.obtain(mWatershedMask.rows(), mWatershedMask.cols(), mWatershedMask.type());
+		mWatershedMask.copyTo(markers);
+		return markers;
+	}
+
+	/**
+	 * Get a copy of watershed parameters with the current thickness.
+	 */
+	private WatershedConfig getWatershedConfig() {
+		WatershedConfig config = new WatershedConfig(mWatershedConfig);
+		config.setThickness(mThickness);
+		return config;
+	}
+
+	/**
+	 * Compute the derived images needed by current config in background, before the first stroke asks for them.
+	 */
+	private void prefetchSourceCache() {
+		if ((mSourceCache != null) && (mWatershedConfig.getPyramidLevel() > 0)) {
+			mSourceCache.prefetch(SourceImageCache.LEVEL + mWatershedConfig.getPyramidLevel());
+		}
+	}
+
+	/**
+	 * Get the bounds of markers drawn since the last watershed, and clear it.
+	 */
+	private Rect takeMarkerBounds() {
+		Rect bounds = new Rect();
+		if (!mMarkerRect.isEmpty()) {
+			bounds = WatershedSegmenter.growRect(new Rect(mMarkerRect.left, mMarkerRect.top, mMarkerRect.width(), mMarkerRect.height()), 0,
+					mOriginMat.width(), mOriginMat.height());
+			mMarkerRect.setEmpty();
+		}
+		return bounds;
+	}
+
+	/**
+	 * Draw the segmentation result on PreviewImage as a step of history, and recycle the mask.<br>
+	 * If a stroke is being drawn, the result is kept until the stroke ends.
+	 * 
+	 * @param foreground
+	 *            The mask of foreground, filled with red
+	 * @param bounds
+	 *            The area where the foreground and markers can be found
+	 * @param steps
+	 *            The steps of history which drew the markers, the result is dropped if any of them has been undone. null if it's not needed.
+	 */
+	private void applySegmentation(Mat foreground, Rect bounds, List<Object> steps) {
+		if (mStrokeTransaction.isOpen()) {
+			mPendingSegmentations.add(new SegmentationResult(foreground, bounds, steps));
+			return;
+		}
+
+		if ((bounds.width > 0) && (bounds.height > 0) && isApplied(steps)) {
+			mStrokeTransaction.begin();
+			mStrokeTransaction.touch(LAYER_PREVIEW, bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height);
+
+			// Draw foreground in one pass over the bounds, the eraser clears PreviewImage directly
+			mPreviewCompositor.composite(mTransMatForPreview, foreground, bounds);
+
+			mStrokeTransaction.commit(mEditHistory);
+			mPreviewSurface.markDirty(bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height);
+			mPreviewSurface.flush(mTransMatForPreview);
+			mPreviewBounds.update(mTransMatForPreview, bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height);
+		}
+
+		// Give the mask back to the arena for the next stroke
+		mMatArena.recycle(foreground);
+	}
+
+	/**
+	 * Whether all steps are still applied, the result of an undone stroke must not be committed over the redo steps.
+	 */
+	private boolean isApplied(List<Object> steps) {
+		if (steps != null) {
+			for (int i = 0; i < steps.size(); i++) {
+				if (!mEditHistory.isApplied(steps.get(i))) {
+					return false;
 				}
-			} while (Core.countNonZero(resultNew) > Core.countNonZero(resultOld));
-			endTime = System.currentTimeMillis();
-			totTime = endTime - startTime;
+			}
 		}
+		return true;
+	}
 
-		// Draw white(foreground) area
-		// mImageContainer.getTransdMatForPreview().setTo(sTrans);
-		mTransMatForPreview.setTo(ImageProcessor.sRed, resultNew);
+	/**
+	 * Apply segmentation results which arrived while the last stroke was being drawn.
+	 */
+	private void applyPendingSegmentations() {
+		while (!mPendingSegmentations.isEmpty()) {
+			SegmentationResult result = mPendingSegmentations.remove(0);
+			applySegmentation(result.mForeground, result.mBounds, result.mSteps);
+		}
+	}
 
-		// Find erased area
-		Mat background = mWatershedMask.clone();
-		Core.inRange(background, ImageProcessor.sBackground, ImageProcessor.sBackground, background);
-		mTransMatForPreview.setTo(ImageProcessor.sTrans, background);
+	/**
+	 * Restore all layers to the state before the current stroke, if there is one.
+	 */
+	public void cancelStroke() {
+		if ((mStrokeTransaction == null) || !mStrokeTransaction.isOpen()) {
+			return;
+		}
+		mMarkerRect.setEmpty();
+		updateSurfaces(mStrokeTransaction.rollback());
+		applyPendingSegmentations();
+	}
 
-		ImageProcessor.showMatAsImage(mTransMatForPreview, mPreviewImage);
+	/**
+	 * Undo the last stroke or segmentation result.
+	 * 
+	 * @return true if there was a step to undo
+	 */
+	public boolean undo() {
+		if (mStrokeTransaction.isOpen()) {
+			return false;
+		}
+		return updateSurfaces(mEditHistory.undo());
+	}
 
-		// Release all temporally reference/resource
-		foreground.release();
-		background.release();
-		resultOld.release();
-		resultNew.release();
+	/**
+	 * Redo the last undone stroke or segmentation result.
+	 * 
+	 * @return true if there was a step to redo
+	 */
+	public boolean redo() {
+		if (mStrokeTransaction.isOpen()) {
+			return false;
+		}
+		return updateSurfaces(mEditHistory.redo());
+	}
 
-		// Reset the watershed mask
-		mWatershedMask.setTo(ImageProcessor.sTrans);
+	/**
+	 * Copy the changed area of Line/PreviewImage to their bitmaps.
+	 * 
+	 * @return false if nothing changed
+	 */
+	private boolean updateSurfaces(Rect rect) {
+		if (rect == null) {
+			return false;
+		}
+		mLineSurface.markDirty(rect.x, rect.y, rect.x + rect.width, rect.y + rect.height);
+		mLineSurface.flush(mTransMatForLine);
+		mPreviewSurface.markDirty(rect.x, rect.y, rect.x + rect.width, rect.y + rect.height);
+		mPreviewSurface.flush(mTransMatForPreview);
+		mPreviewBounds.update(mTransMatForPreview, rect.x, rect.y, rect.x + rect.width, rect.y + rect.height);
+		return true;
+	}
 
-		return mTransMatForPreview;
+	private void releasePendingSegmentations() {
+		for (int i = 0; i < mPendingSegmentations.size(); i++) {
+			mMatArena.recycle(mPendingSegmentations.get(i).mForeground);
+		}
+		mPendingSegmentations.clear();
+	}
+
+	@Override
+	public void onSegmented(Mat foreground, Rect bounds, List<Object> tags) {
+		if (mTransMatForPreview == null) {
+			// Detached before the result arrived, the arena has been released
+			mMatArena.recycle(foreground);
+			return;
+		}
+		applySegmentation(foreground, bounds, tags);
+	}
+
+	// ============================================================
+	// Session
+	/**
+	 * Save the source image and all layers, so the work can be restored by {@link #restoreSession(File)} after the app is killed. The history
+	 * is not saved, and neither are the markers, which are cleared after each stroke and so always empty when no stroke is being drawn.<br>
+	 * The layers are copied on the calling thread and written by {@link SessionFile#writeInBackground(File, Mat...)}, so drawing can go on
+	 * while the file is written.
+	 * 
+	 * @return false if there is no image or a stroke is being drawn
+	 */
+	public boolean saveSession(File file) {
+		if ((mOriginMat == null) || mStrokeTransaction.isOpen()) {
+			return false;
+		}
+		SessionFile.writeInBackground(file, mOriginMat.clone(), mTransMatForLine.clone(), mTransMatForPreview.clone());
+		return true;
+	}
+
+	/**
+	 * Restore the image and all layers saved by {@link #saveSession(File)}, the image is shown in its saved size. The restored state is the base
+	 * of history.
+	 * 
+	 * @return false if the file can't be read, the current image is kept then
+	 */
+	public boolean restoreSession(File file) {
+		Mat[] layers;
+		try {
+			layers = SessionFile.read(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if ((layers.length != 3) || (layers[0].channels() != 3)) {
+			for (Mat layer : layers) {
+				layer.release();
+			}
+			return false;
+		}
+
+		// The bitmap of BaseImage is made from the saved source, no decoding needed
+		Mat rgba = new Mat();
+		Imgproc.cvtColor(layers[0], rgba, Imgproc.COLOR_BGR2BGRA);
+		Bitmap bitmap = BitmapPool.getInstance().get(rgba.width(), rgba.height(), Config.ARGB_8888);
+		Utils.matToBitmap(rgba, bitmap);
+		rgba.release();
+		initImage(bitmap, layers[0]);
+
+		// The order should be the same as saveSession()
+		layers[1].copyTo(mTransMatForLine);
+		layers[2].copyTo(mTransMatForPreview);
+		for (int i = 1; i < layers.length; i++) {
+			layers[i].release();
+		}
+		mLineSurface.update(mTransMatForLine);
+		mPreviewSurface.update(mTransMatForPreview);
+		mPreviewBounds.update(mTransMatForPreview, 0, 0, mTransMatForPreview.width(), mTransMatForPreview.height());
+		return true;
 	}
 
 	// ============================================================
@@ -490,16 +900,89 @@ public class ImageContainer extends RelativeLayout {
 	}
 
 	/**
-	 * Get watershed mask's outer rect.
+	 * Get watershed mask's outer rect, it's kept up to date by each watershed, eraser and undo/redo step, so no scan is needed here.
+	 * 
+	 * @return A new {@link Rect}, null if nothing is cut out.
 	 */
 	public Rect getWatershedMaskRect() {
-		Mat tmpTransMatForPreview = new Mat(mTransMatForPreview.size(), CvType.CV_8UC1);
-		Imgproc.cvtColor(mTransMatForPreview, tmpTransMatForPreview, Imgproc.COLOR_BGRA2GRAY);
+		return mPreviewBounds.getBounds();
+	}
+
+	/**
+	 * Set whether watershed runs only on the region around markers(default), or on the whole image for comparison.
+	 */
+	public void setRoiWatershed(boolean roiWatershed) {
+		mWatershedConfig.setRoiWatershed(roiWatershed);
+	}
+
+	public boolean isRoiWatershed() {
+		return mWatershedConfig.isRoiWatershed();
+	}
+
+	/**
+	 * Set the level of pyramid mode, watershed searches the background bounds on the image scaled by 1 / 2^level first, then refines the
+	 * boundary at full resolution. 0(default) to turn it off.
+	 */
+	public void setPyramidLevel(int pyramidLevel) {
+		if (mWatershedConfig.getPyramidLevel() != pyramidLevel) {
+			mWatershedConfig.setPyramidLevel(pyramidLevel);
+			prefetchSourceCache();
+		}
+	}
 
-		List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-		Imgproc.findContours(tmpTransMatForPreview, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, new Point(0, 0));
+	public int getPyramidLevel() {
+		return mWatershedConfig.getPyramidLevel();
+	}
 
-		return ImageProcessor.combineContourRect(contours);
+	/**
+	 * Set the backend which floods markers, {@link TiledWatershedEngine} on devices with more than one core and {@link OpenCvWatershedEngine}
+	 * otherwise by default. A tiled backend is shut down by the container when it's replaced or the container is detached.
+	 */
+	public void setWatershedEngine(WatershedEngine engine) {
+		if (mWatershedConfig.getEngine() != engine) {
+			releaseWatershedEngine();
+			mWatershedConfig.setEngine(engine);
+		}
+	}
+
+	/**
+	 * Shut down the tiled backend after the job which may be flooding with it.
+	 */
+	private void releaseWatershedEngine() {
+		WatershedEngine engine = mWatershedConfig.getEngine();
+		if (engine instanceof TiledWatershedEngine) {
+			mSegmentationWorker.release((TiledWatershedEngine) engine);
+		}
+	}
+
+	/**
+	 * Set how the background bounds search converges, fewer passes for slow devices and more for accuracy.
+	 * 
+	 * @param growth
+	 *            How the margin grows, {@link WatershedConfig.Growth#LINEAR} by default
+	 * @param maxIterations
+	 *            The max number of watershed passes, 2 by default
+	 * @param areaThreshold
+	 *            The relative change of foreground area below which the search is stable, 0 by default
+	 */
+	public void setWatershedConvergence(WatershedConfig.Growth growth, int maxIterations, double areaThreshold) {
+		mWatershedConfig.setGrowth(growth);
+		mWatershedConfig.setMaxIterations(maxIterations);
+		mWatershedConfig.setAreaThreshold(areaThreshold);
+	}
+
+	/**
+	 * Get the max width of image, images are scaled to fit inside the parent.
+	 */
+	public int getMaxImageWidth() {
+		return ((View) getParent()).getWidth();
+	}
+
+	/**
+	 * Get the max height of image, images are scaled to fit inside the parent.
+	 */
+	public int getMaxImageHeight() {
+		return ((View) getParent()).getHeight();
 	}
 
 	public void setState(STATE state) {
@@ -509,5 +992,35 @@ public class ImageContainer extends RelativeLayout {
 	public Mat getWatershedMask() {
 		return mTransMatForPreview;
 	}
+
+	/**
+	 * Set the max bytes of undo/redo history, the oldest steps are evicted first.
+	 */
+	public void setHistoryByteBudget(long byteBudget) {
+		mEditHistory.setByteBudget(byteBudget);
+	}
+
+	public boolean canUndo() {
+		return mEditHistory.canUndo();
+	}
+
+	public boolean canRedo() {
+		return mEditHistory.canRedo();
+	}
+
+	/**
+	 * A segmentation result waiting for the current stroke to end
+	 */
+	private static class SegmentationResult {
+		private final Mat mForeground;
+		private final Rect mBounds;
+		private final List<Object> mSteps;
+
+		private SegmentationResult(Mat foreground, Rect bounds, List<Object> steps) {
+			mForeground = foreground;
+			mBounds = bounds;
+			mSteps = steps;
+		}
+	}
 	// ============================================================
 }
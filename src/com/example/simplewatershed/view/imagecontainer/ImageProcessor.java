@@ -1,26 +1,21 @@
 package com.example.simplewatershed.view.imagecontainer;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import org.opencv.android.Utils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Color;
-import android.graphics.drawable.BitmapDrawable;
-import android.widget.ImageView;
+
+import com.example.simplewatershed.segmentation.GrowthStats;
+import com.example.simplewatershed.segmentation.MatArena;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
 
 public class ImageProcessor {
 	public static final int MIN_SCALAR_FOR_WATERSHED = 0;
 	public static final int MAX_SCALAR_FOR_WATERSHED = 3;
-	public static final int BASIC_THICKNESS = 8;
+	public static final int BASIC_THICKNESS = WatershedConfig.DEFAULT_THICKNESS;
 	public static final int MAX_THICKNESS = 20;
 	public static final int BASIC_SCALE = 1;
 	public static final int MAX_SCALE = 10;
@@ -33,96 +28,43 @@ public class ImageProcessor {
 	public static final int TIMES_BWTWEEN_THICKNESS = 4;
 	public static final Scalar sRed = new Scalar(255.0, 0.0, 0.0, 255.0 * 0.5d);
 	public static final Scalar sTrans = new Scalar(0.0, 0.0, 0.0, 0.0);
-	public static final Scalar sBlack = new Scalar(0.0, 0.0, 0.0, 255.0);
+	public static final Scalar sBlack = WatershedSegmenter.sBlack;
 	public static final Scalar sWhite = new Scalar(255.0, 255.0, 255.0, 255.0);
-	public static final Scalar sForeground = new Scalar(1.0);
-	public static final Scalar sBackground = new Scalar(2.0);
-
-	/**
-	 * Show mat as bitmap on image view
-	 * 
-	 * @param targetMat
-	 *            The mat that will be show
-	 * @param targetView
-	 *            The ImageView will show the mat
-	 */
-	public static Bitmap showMatAsImage(Mat targetMat, ImageView targetView) {
-		Bitmap bitmap = null;
-		if (targetMat != null) {
-			bitmap = Bitmap.createBitmap(targetMat.width(), targetMat.height(), Config.ARGB_8888);
-			Utils.matToBitmap(targetMat, bitmap);
-		}
-		recycle(targetView);
-		targetView.setImageBitmap(bitmap);
-		return bitmap;
-	}
-
-	/**
-	 * Recycle bitmap in ImageView
-	 */
-	public static void recycle(ImageView imageView) {
-		if ((BitmapDrawable) imageView.getDrawable() != null) {
-			Bitmap bitmap = ((BitmapDrawable) imageView.getDrawable()).getBitmap();
-			if ((bitmap != null) && !bitmap.isRecycled()) {
-				bitmap.recycle();
-			}
-			imageView.setImageBitmap(bitmap = null);
-		}
-	}
+	public static final Scalar sForeground = WatershedSegmenter.sForeground;
+	public static final Scalar sBackground = WatershedSegmenter.sBackground;
 
 	/**
-	 * Combine all MatOfPoint in list into a single one.
+	 * Find the foreground area with {@link WatershedSegmenter#segment(Mat, Mat, Mat, WatershedConfig, Rect, GrowthStats)}, derived images are
+	 * taken from the cache.
 	 * 
-	 * @param contours
-	 *            The target list of MatOfPoint.
-	 * @return The original list with one MatOfPoint.
+	 * @param cache
+	 *            The cache of the source image
+	 * @param markers
+	 *            The 1 channel mask with user's markers, will not be changed
+	 * @param config
+	 *            The parameters of watershed
+	 * @param bounds
+	 *            The rect to save the area where the foreground can be found, empty if there is no foreground. null if not needed.
+	 * @param stats
+	 *            The stats to save each iteration of the search, null if not needed.
+	 * @return The mask of foreground, the caller should release it, or recycle it to the arena of config. All black, with empty bounds, if
+	 *         the cache was released.
 	 */
-	public static List<MatOfPoint> combineContour(List<MatOfPoint> contours) {
-		List<org.opencv.core.Point> mixPoints = new ArrayList<org.opencv.core.Point>();
-		for (int k = 0; k < contours.size(); k++) {
-			mixPoints.addAll(contours.get(k).toList());
-		}
-		contours.clear();
-		contours.add(new MatOfPoint(mixPoints.toArray(new org.opencv.core.Point[mixPoints.size()])));
-		mixPoints.clear();
-		mixPoints = null;
-		return contours;
-	}
-
-	/**
-	 * Combine all MatOfPoint's {@link Rect} in list.
-	 * 
-	 * @param contours
-	 *            The target list of MatOfPoint.
-	 * @return The {@link Rect} contains all contours, null if the target contour list is empty.
-	 */
-	public static Rect combineContourRect(List<MatOfPoint> contours) {
-		if (contours.size() == 0) {
-			return null;
-		}
-
-		Point tl = Imgproc.boundingRect(contours.get(0)).tl();
-		Point br = Imgproc.boundingRect(contours.get(0)).br();
-
-		for (int i = 1; i < contours.size(); i++) {
-			Rect rect = Imgproc.boundingRect(contours.get(i));
-			if (tl.x > rect.tl().x) {
-				tl.x = rect.tl().x;
-			}
-
-			if (tl.y > rect.tl().y) {
-				tl.y = rect.tl().y;
+	public static Mat segment(SourceImageCache cache, Mat markers, WatershedConfig config, Rect bounds, GrowthStats stats) {
+		Mat originMat = cache.getSource();
+		Mat coarseMat = config.getPyramidLevel() > 0 ? cache.getLevel(config.getPyramidLevel()) : null;
+		if (originMat == null) {
+			if (bounds != null) {
+				bounds.x = bounds.y = bounds.width = bounds.height = 0;
 			}
-
-			if (br.x < rect.br().x) {
-				br.x = rect.br().x;
-			}
-
-			if (br.y < rect.br().y) {
-				br.y = rect.br().y;
+			if (stats != null) {
+				stats.reset();
 			}
+			Mat result = MatArena.obtainFrom(config.getArena(), markers.rows(), markers.cols(), CvType.CV_8U);
+			result.setTo(sBlack);
+			return result;
 		}
-		return new Rect(tl, br);
+		return WatershedSegmenter.segment(originMat, coarseMat, markers, config, bounds, stats);
 	}
 
 	/**
@@ -0,0 +1,141 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.widget.ImageView;
+
+import com.example.simplewatershed.util.BitmapPool;
+import com.example.simplewatershed.util.LatencyHistogram;
+import com.example.simplewatershed.util.Metrics;
+import com.example.simplewatershed.util.PixelConverter;
+import com.example.simplewatershed.util.Util;
+
+/**
+ * A long-lived ARGB_8888 bitmap bound to an ImageView, for showing a layer mat which changes frequently.<br>
+ * The bitmap is allocated only once and updated in place. Changes can be collected as dirty rects by {@link #markDirty(int, int, int, int)},
+ * and only the merged area is copied by {@link #flush(Mat)}.<br>
+ * <strong>Note:</strong> Always call {@link #recycle()} when the layer is no longer used.
+ */
+public class MatSurface {
+	private static final LatencyHistogram sUploadTimer = Metrics.timer(Metrics.UPLOAD);
+
+	private ImageView mImageView;
+	private Bitmap mBitmap;
+
+	// The merged area changed since the last flush
+	private Rect mDirtyRect;
+	// Scratch buffers for copying the dirty area, grown when necessary
+	private byte[] mRgbaBuffer;
+	private int[] mArgbBuffer;
+	private RectF mInvalidateRect;
+	private Rect mInvalidateBounds;
+
+	/**
+	 * Recycle the old bitmap in ImageView, and bind a new one with the target size to it.
+	 *
+	 * @param imageView
+	 *            The ImageView to show the layer
+	 * @param width
+	 *            The width of the layer
+	 * @param height
+	 *            The height of the layer
+	 */
+	public MatSurface(ImageView imageView, int width, int height) {
+		mImageView = imageView;
+		Util.recycle(mImageView);
+		mBitmap = BitmapPool.getInstance().get(width, height, Config.ARGB_8888);
+		mImageView.setImageBitmap(mBitmap);
+
+		mDirtyRect = new Rect();
+		mInvalidateRect = new RectF();
+		mInvalidateBounds = new Rect();
+	}
+
+	/**
+	 * Copy the whole mat into the bitmap and redraw the ImageView.
+	 *
+	 * @param mat
+	 *            The 4 channel mat with the same size as the surface
+	 */
+	public void update(Mat mat) {
+		long startTime = System.nanoTime();
+		Utils.matToBitmap(mat, mBitmap, true);
+		sUploadTimer.recordSince(startTime);
+		mDirtyRect.setEmpty();
+		mImageView.invalidate();
+	}
+
+	/**
+	 * Merge the area into the dirty rect, it will be copied by the next {@link #flush(Mat)}.
+	 */
+	public void markDirty(int left, int top, int right, int bottom) {
+		if (mDirtyRect.isEmpty()) {
+			mDirtyRect.set(left, top, right, bottom);
+		} else {
+			mDirtyRect.union(left, top, right, bottom);
+		}
+	}
+
+	/**
+	 * Copy the dirty area of the mat into the bitmap, and redraw only that area of the ImageView.
+	 *
+	 * @param mat
+	 *            The 4 channel mat with the same size as the surface
+	 */
+	public void flush(Mat mat) {
+		if (mDirtyRect.isEmpty() || !mDirtyRect.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight())) {
+			mDirtyRect.setEmpty();
+			return;
+		}
+		long startTime = System.nanoTime();
+		int width = mDirtyRect.width();
+		int height = mDirtyRect.height();
+		int pixels = width * height;
+		if ((mArgbBuffer == null) || (mArgbBuffer.length < pixels)) {
+			mRgbaBuffer = new byte[pixels * 4];
+			mArgbBuffer = new int[pixels];
+		}
+
+		// Mat.get() copies the submat row by row into a packed buffer
+		Mat dirtyMat = mat.submat(mDirtyRect.top, mDirtyRect.bottom, mDirtyRect.left, mDirtyRect.right);
+		dirtyMat.get(0, 0, mRgbaBuffer);
+		dirtyMat.release();
+		PixelConverter.rgbaToArgb(mRgbaBuffer, mArgbBuffer, pixels);
+		mBitmap.setPixels(mArgbBuffer, 0, width, mDirtyRect.left, mDirtyRect.top, width, height);
+		sUploadTimer.recordSince(startTime);
+
+		// Map the dirty area from bitmap to view coordinates
+		mInvalidateRect.set(mDirtyRect.left, mDirtyRect.top, mDirtyRect.right, mDirtyRect.bottom);
+		mImageView.getImageMatrix().mapRect(mInvalidateRect);
+		mInvalidateRect.roundOut(mInvalidateBounds);
+		mImageView.invalidate(mInvalidateBounds.left - 1, mInvalidateBounds.top - 1, mInvalidateBounds.right + 1, mInvalidateBounds.bottom + 1);
+
+		mDirtyRect.setEmpty();
+	}
+
+	public Bitmap getBitmap() {
+		return mBitmap;
+	}
+
+	public ImageView getImageView() {
+		return mImageView;
+	}
+
+	/**
+	 * Unbind the bitmap from ImageView and recycle it.
+	 */
+	public void recycle() {
+		if (mImageView != null) {
+			Util.recycle(mImageView);
+			mImageView = null;
+		}
+		mBitmap = null;
+		mRgbaBuffer = null;
+		mArgbBuffer = null;
+	}
+}
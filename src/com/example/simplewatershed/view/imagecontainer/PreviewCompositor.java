@@ -0,0 +1,92 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import com.example.simplewatershed.util.LatencyHistogram;
+import com.example.simplewatershed.util.Metrics;
+
+/**
+ * Paint segmentation results onto the 4 channel PreviewImage layer, over the bounds of each result only.<br>
+ * The foreground mask and the preview pixels in the bounds are read once into buffers kept across calls, mapped in a single loop, and written
+ * back. So no setTo() walks the whole layer.
+ */
+public class PreviewCompositor {
+	private static final LatencyHistogram sCompositeTimer = Metrics.timer(Metrics.COMPOSITE);
+
+	private final byte[] mForegroundPixel;
+
+	private byte[] mForegroundBuffer;
+	private byte[] mPreviewBuffer;
+
+	/**
+	 * @param foregroundColor
+	 *            The RGBA color of foreground
+	 */
+	public PreviewCompositor(Scalar foregroundColor) {
+		mForegroundPixel = toPixel(foregroundColor);
+	}
+
+	/**
+	 * Fill the foreground with the foreground color, other pixels are kept.
+	 *
+	 * @param preview
+	 *            The 4 channel layer, changed in place
+	 * @param foreground
+	 *            The 1 channel mask of foreground with the same size
+	 * @param bounds
+	 *            The area where the foreground can be found
+	 */
+	public void composite(Mat preview, Mat foreground, Rect bounds) {
+		int left = Math.max(bounds.x, 0);
+		int top = Math.max(bounds.y, 0);
+		int right = Math.min(bounds.x + bounds.width, preview.width());
+		int bottom = Math.min(bounds.y + bounds.height, preview.height());
+		if ((right <= left) || (bottom <= top)) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		int pixels = (right - left) * (bottom - top);
+		if ((mForegroundBuffer == null) || (mForegroundBuffer.length < pixels)) {
+			mForegroundBuffer = new byte[pixels];
+			mPreviewBuffer = new byte[pixels * 4];
+		}
+
+		// Mat.get() copies the submats row by row into packed buffers
+		Mat roiPreview = preview.submat(top, bottom, left, right);
+		Mat roiForeground = foreground.submat(top, bottom, left, right);
+		roiPreview.get(0, 0, mPreviewBuffer);
+		roiForeground.get(0, 0, mForegroundBuffer);
+		roiForeground.release();
+
+		for (int p = 0; p < pixels; p++) {
+			if (mForegroundBuffer[p] != 0) {
+				System.arraycopy(mForegroundPixel, 0, mPreviewBuffer, p * 4, 4);
+			}
+		}
+
+		roiPreview.put(0, 0, mPreviewBuffer);
+		roiPreview.release();
+		sCompositeTimer.recordSince(startTime);
+	}
+
+	/**
+	 * Drop the buffers, they are allocated again by the next call.
+	 */
+	public void release() {
+		mForegroundBuffer = null;
+		mPreviewBuffer = null;
+	}
+
+	/**
+	 * Saturate the scalar to 8-bit channels, rounded as Mat.setTo() does.
+	 */
+	private static byte[] toPixel(Scalar color) {
+		byte[] pixel = new byte[4];
+		for (int c = 0; c < 4; c++) {
+			pixel[c] = (byte) Math.max(0, Math.min(255, (int) Math.rint(color.val[c])));
+		}
+		return pixel;
+	}
+}
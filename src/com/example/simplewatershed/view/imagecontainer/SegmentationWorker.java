@@ -0,0 +1,266 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.simplewatershed.segmentation.GrowthStats;
+import com.example.simplewatershed.segmentation.MatArena;
+import com.example.simplewatershed.segmentation.TiledWatershedEngine;
+import com.example.simplewatershed.segmentation.WatershedConfig;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+import com.example.simplewatershed.util.LatencyHistogram;
+import com.example.simplewatershed.util.Logger;
+import com.example.simplewatershed.util.Metrics;
+
+/**
+ * Run watershed on a dedicated background thread, and post the finished result back to the UI thread.<br>
+ * Only one job waits in the queue. If a newer stroke arrives before the waiting job started, its markers are merged into the waiting one and
+ * the older job is counted as dropped (latest-wins), so no stroke is lost but no stale work is done either.<br>
+ * <strong>Note:</strong> All public methods except the counters should be called on the UI thread. Always call {@link #shutdown()} to stop the
+ * thread.
+ */
+public class SegmentationWorker {
+	private static final LatencyHistogram sWatershedTimer = Metrics.timer(Metrics.WATERSHED);
+	private static final LatencyHistogram sIterationTimer = Metrics.timer(Metrics.WATERSHED_ITERATION);
+
+	/**
+	 * Callback on the UI thread when a job is finished
+	 */
+	public interface OnSegmentedListener {
+		/**
+		 * @param foreground
+		 *            The mask of foreground, the listener should release it, or recycle it to the arena of the config.
+		 * @param bounds
+		 *            The area where the foreground and markers can be found
+		 * @param tags
+		 *            The tags of all jobs merged into this one, in the order they were submitted
+		 */
+		void onSegmented(Mat foreground, Rect bounds, List<Object> tags);
+	}
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler;
+	private OnSegmentedListener mListener;
+
+	// Guard mPendingJob/mRunning/mEpoch
+	private final Object mLock = new Object();
+	private Job mPendingJob;
+	private boolean mRunning;
+	// Increased by cancel(), jobs from older epoch will never be posted
+	private int mEpoch;
+
+	// Counters for tuning
+	private final AtomicLong mSubmittedCount = new AtomicLong();
+	private final AtomicLong mCompletedCount = new AtomicLong();
+	private final AtomicLong mDroppedCount = new AtomicLong();
+	// Iterations of the last job, only used on the worker thread
+	private final GrowthStats mGrowthStats = new GrowthStats();
+
+	public SegmentationWorker(OnSegmentedListener listener) {
+		mListener = listener;
+		mHandler = new Handler(Looper.getMainLooper());
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "SegmentationWorker");
+			}
+		});
+	}
+
+	/**
+	 * Queue a watershed job
+	 *
+	 * @param cache
+	 *            The cache of source image, should not be released until {@link #release(SourceImageCache)}
+	 * @param markers
+	 *            The snapshot of markers, owned by the worker after this call
+	 * @param markerBounds
+	 *            The area where markers can be found
+	 * @param config
+	 *            The parameters of watershed, owned by the worker after this call
+	 * @param tag
+	 *            Given back with the result, e.g. to find out whether the result is still wanted
+	 */
+	public void submit(SourceImageCache cache, Mat markers, Rect markerBounds, WatershedConfig config, Object tag) {
+		mSubmittedCount.incrementAndGet();
+		synchronized (mLock) {
+			if ((mPendingJob != null) && (mPendingJob.mCache == cache)) {
+				// The waiting job is stale, take over it with the newer markers drawn on top
+				markers.copyTo(mPendingJob.mMarkers, markers);
+				MatArena.recycleTo(config.getArena(), markers);
+				mPendingJob.mMarkerBounds = WatershedSegmenter.unionRect(mPendingJob.mMarkerBounds, markerBounds);
+				mPendingJob.mConfig = config;
+				mPendingJob.mTags.add(tag);
+				mDroppedCount.incrementAndGet();
+				return;
+			}
+			if (mPendingJob != null) {
+				MatArena.recycleTo(mPendingJob.mConfig.getArena(), mPendingJob.mMarkers);
+				mDroppedCount.incrementAndGet();
+			}
+			mPendingJob = new Job(mEpoch, cache, markers, markerBounds, config, tag);
+		}
+		mExecutor.execute(mDrainRunnable);
+	}
+
+	/**
+	 * Drop the waiting job, and prevent the running one from being posted.
+	 */
+	public void cancel() {
+		synchronized (mLock) {
+			mEpoch++;
+			if (mPendingJob != null) {
+				MatArena.recycleTo(mPendingJob.mConfig.getArena(), mPendingJob.mMarkers);
+				mPendingJob = null;
+				mDroppedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Shut down the engine on the worker thread after the running job, which may still flood with it.
+	 */
+	public void release(final TiledWatershedEngine engine) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				engine.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Release the cache on the worker thread after the running job.
+	 */
+	public void release(final SourceImageCache cache) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				cache.release();
+			}
+		});
+	}
+
+	/**
+	 * Cancel all jobs and stop the worker thread after the queued releases.
+	 */
+	public void shutdown() {
+		cancel();
+		mListener = null;
+		mExecutor.shutdown();
+		Logger.d(getClass(), "Shutdown, submitted: %d, completed: %d, dropped: %d", getSubmittedCount(), getCompletedCount(), getDroppedCount());
+	}
+
+	/**
+	 * Get the number of jobs waiting or running
+	 */
+	public int getQueueDepth() {
+		synchronized (mLock) {
+			return (mPendingJob != null ? 1 : 0) + (mRunning ? 1 : 0);
+		}
+	}
+
+	public long getSubmittedCount() {
+		return mSubmittedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return mCompletedCount.get();
+	}
+
+	/**
+	 * Get the number of jobs merged into a newer one or cancelled before they started
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			final Job job;
+			synchronized (mLock) {
+				job = mPendingJob;
+				mPendingJob = null;
+				if (job == null) {
+					// Merged into a job which was already taken
+					return;
+				}
+				mRunning = true;
+			}
+
+			Rect foregroundBounds = new Rect();
+			long startTime = System.nanoTime();
+			final Mat foreground = ImageProcessor.segment(job.mCache, job.mMarkers, job.mConfig, foregroundBounds, mGrowthStats);
+			sWatershedTimer.recordSince(startTime);
+			// The core has no timers of the app, the iterations are taken from the stats
+			for (int i = 0; i < mGrowthStats.getIterations(); i++) {
+				sIterationTimer.record(mGrowthStats.getNanos(i));
+			}
+			// The stats are reused by the next job, so the message is built now
+			if (Logger.isLoggable(Log.DEBUG)) {
+				Logger.d(SegmentationWorker.class, "Segmented with " + job.mConfig.getGrowth() + " growth, " + mGrowthStats);
+			}
+			final Rect bounds = WatershedSegmenter.unionRect(foregroundBounds, job.mMarkerBounds);
+			// Markers are only read by watershed, the snapshot can be reused by the next stroke
+			MatArena.recycleTo(job.mConfig.getArena(), job.mMarkers);
+
+			synchronized (mLock) {
+				mRunning = false;
+			}
+			mCompletedCount.incrementAndGet();
+
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					boolean stale;
+					synchronized (mLock) {
+						stale = job.mEpoch != mEpoch;
+					}
+					if (stale || (mListener == null)) {
+						MatArena.recycleTo(job.mConfig.getArena(), foreground);
+						return;
+					}
+					mListener.onSegmented(foreground, bounds, job.mTags);
+				}
+			});
+		}
+	};
+
+	private static class Job {
+		private final int mEpoch;
+		private final SourceImageCache mCache;
+		private final Mat mMarkers;
+		private final List<Object> mTags;
+		private Rect mMarkerBounds;
+		private WatershedConfig mConfig;
+
+		private Job(int epoch, SourceImageCache cache, Mat markers, Rect markerBounds, WatershedConfig config, Object tag) {
+			mEpoch = epoch;
+			mCache = cache;
+			mMarkers = markers;
+			mMarkerBounds = markerBounds;
+			mConfig = config;
+			mTags = new ArrayList<Object>(1);
+			mTags.add(tag);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.os.Process;
+
+import com.example.simplewatershed.util.Logger;
+import com.example.simplewatershed.util.RunLengthCodec;
+
+/**
+ * A working session saved as layers of the same size in one binary file, so it can be restored without decoding or segmenting again.<br>
+ * <strong>Format:</strong> A header of [magic, version, width, height, layer count], then one chunk per layer of [layer index, mat type, tile
+ * size, byte length] followed by its tiles in raster order. Each tile is [encoding(1 byte), length(4 bytes), data], where the data is
+ * {@link RunLengthCodec} runs or raw pixels, whichever is smaller. So the sparse layers shrink to a few runs per tile, while the photo is
+ * stored as it is and restored by plain copies.<br>
+ * The file is written to a temporary file and renamed, a crash while saving leaves the last session intact. Both directions go through a
+ * {@link MappedByteBuffer}, the tiles are encoded straight into the mapping.<br>
+ * {@link #writeInBackground(File, Mat...)} and {@link #delete(File)} are run in order on one background thread, and {@link #read(File)} waits
+ * for them, so the UI thread never writes and never reads a session which is being replaced.
+ */
+public class SessionFile {
+	private static final int MAGIC = 0x53575331;
+	private static final int VERSION = 2;
+	private static final int TILE_SIZE = 256;
+	private static final int HEADER_SIZE = 5 * 4;
+	private static final int CHUNK_HEADER_SIZE = (3 * 4) + 8;
+	private static final byte ENCODING_RAW = 0;
+	private static final byte ENCODING_RLE = 1;
+	// Bytes of [encoding, length] before each tile
+	private static final int TILE_HEADER_SIZE = 1 + 4;
+
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "SessionFile");
+		}
+	});
+
+	/**
+	 * Write the layers into the file on the background thread, after the writes and deletes queued before.
+	 *
+	 * @param file
+	 *            The session file
+	 * @param layers
+	 *            Layers with the same size, any 8-bit type. They are owned by the writer after this call and released after writing, so pass
+	 *            copies of layers which are still drawn on.
+	 */
+	public static void writeInBackground(final File file, final Mat... layers) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(file, layers);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					release(layers);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delete the file on the background thread after the writes queued before, e.g. when the session is finished and should not be restored.
+	 */
+	public static void delete(final File file) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (file.exists() && !file.delete()) {
+					Logger.d(SessionFile.class, "Can't delete " + file);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write the layers into the file, the old file is replaced.
+	 *
+	 * @param file
+	 *            The session file
+	 * @param layers
+	 *            Layers with the same size, any 8-bit type
+	 */
+	public static void write(File file, Mat... layers) throws IOException {
+		int width = layers[0].width();
+		int height = layers[0].height();
+
+		// Map the size of the worst case, where every tile is stored raw, and cut the file to the written size after
+		int tiles = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+		long size = HEADER_SIZE;
+		for (int i = 0; i < layers.length; i++) {
+			size += CHUNK_HEADER_SIZE + ((long) tiles * TILE_HEADER_SIZE) + ((long) width * height * layers[i].elemSize());
+		}
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		if (tmpFile.exists() && !tmpFile.delete()) {
+			throw new IOException("Can't delete " + tmpFile);
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(width);
+			buffer.putInt(height);
+			buffer.putInt(layers.length);
+			for (int i = 0; i < layers.length; i++) {
+				buffer.putInt(i);
+				buffer.putInt(layers[i].type());
+				buffer.putInt(TILE_SIZE);
+				// The byte length is known after the tiles are written
+				int lengthPosition = buffer.position();
+				buffer.putLong(0);
+				int chunkStart = buffer.position();
+				encodeLayer(layers[i], buffer);
+				buffer.putLong(lengthPosition, buffer.position() - chunkStart);
+			}
+			buffer.force();
+			randomAccessFile.setLength(buffer.position());
+		} finally {
+			randomAccessFile.close();
+		}
+		if (!tmpFile.renameTo(file)) {
+			throw new IOException("Can't rename " + tmpFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Read all layers from the file, after the writes and deletes queued before.
+	 *
+	 * @param file
+	 *            The session file
+	 * @return The layers in the order they were written, the caller should release them.
+	 * @throws IOException
+	 *             If the file can't be read, or it's not a session file of this version
+	 */
+	public static Mat[] read(File file) throws IOException {
+		awaitQueued();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		Mat[] layers = null;
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if ((buffer.remaining() < HEADER_SIZE) || (buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+				throw new IOException("Not a session file: " + file);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int layerCount = buffer.getInt();
+			// Each layer has a chunk header at least, so a count beyond that is broken and not allocated
+			if ((width <= 0) || (height <= 0) || (layerCount <= 0) || (layerCount > (buffer.remaining() / CHUNK_HEADER_SIZE))) {
+				throw new IOException("Broken header in session file: " + file);
+			}
+			// Each tile has a header at least, so a size beyond that is broken and not allocated
+			long tiles = ((width + (long) TILE_SIZE - 1) / TILE_SIZE) * ((height + (long) TILE_SIZE - 1) / TILE_SIZE);
+			layers = new Mat[layerCount];
+			for (int i = 0; i < layers.length; i++) {
+				int index = buffer.getInt();
+				int type = buffer.getInt();
+				int tileSize = buffer.getInt();
+				long length = buffer.getLong();
+				// Tiles are always written in TILE_SIZE, any other size would loop forever or overflow the tile buffers
+				if ((index < 0) || (index >= layers.length) || (layers[index] != null) || (CvType.depth(type) != CvType.CV_8U)
+						|| (tileSize != TILE_SIZE) || (length < (tiles * TILE_HEADER_SIZE)) || (length > buffer.remaining())) {
+					throw new IOException("Broken chunk in session file: " + file);
+				}
+				int end = buffer.position() + (int) length;
+				layers[index] = new Mat(height, width, type);
+				decodeLayer(buffer, end, layers[index]);
+				buffer.position(end);
+			}
+		} catch (RuntimeException e) {
+			// Truncated data underflows the buffer
+			release(layers);
+			throw new IOException("Broken session file: " + file, e);
+		} catch (IOException e) {
+			release(layers);
+			throw e;
+		} finally {
+			randomAccessFile.close();
+		}
+		return layers;
+	}
+
+	/**
+	 * Write the tiles of the layer at the position of the buffer, each tile is encoded in place and rewritten raw if the runs are not smaller.
+	 */
+	private static void encodeLayer(Mat layer, MappedByteBuffer buffer) {
+		int elemSize = (int) layer.elemSize();
+		byte[] raw = new byte[TILE_SIZE * TILE_SIZE * elemSize];
+
+		for (int y = 0; y < layer.height(); y += TILE_SIZE) {
+			for (int x = 0; x < layer.width(); x += TILE_SIZE) {
+				Mat tile = layer.submat(y, Math.min(y + TILE_SIZE, layer.height()), x, Math.min(x + TILE_SIZE, layer.width()));
+				int length = tile.width() * tile.height() * elemSize;
+				// A buffer larger than the tile is fine for Mat.get(), as long as it's a multiple of channels
+				tile.get(0, 0, raw);
+				tile.release();
+
+				int tileStart = buffer.position();
+				buffer.position(tileStart + TILE_HEADER_SIZE);
+				int encodedLength = RunLengthCodec.encode(raw, length, elemSize, buffer, length - 1);
+				if (encodedLength >= 0) {
+					buffer.put(tileStart, ENCODING_RLE);
+					buffer.putInt(tileStart + 1, encodedLength);
+				} else {
+					buffer.position(tileStart + TILE_HEADER_SIZE);
+					buffer.put(raw, 0, length);
+					buffer.put(tileStart, ENCODING_RAW);
+					buffer.putInt(tileStart + 1, length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the tiles of the layer from the position of the buffer. Each tile must lie within the chunk, and must decode to exactly the pixels
+	 * of the tile.
+	 * 
+	 * @param end
+	 *            The position after the chunk of the layer
+	 */
+	private static void decodeLayer(MappedByteBuffer buffer, int end, Mat layer) throws IOException {
+		int elemSize = (int) layer.elemSize();
+		int tileLength = TILE_SIZE * TILE_SIZE * elemSize;
+		byte[] raw = new byte[tileLength];
+		byte[] encoded = new byte[RunLengthCodec.maxEncodedLength(tileLength, elemSize)];
+
+		for (int y = 0; y < layer.height(); y += TILE_SIZE) {
+			for (int x = 0; x < layer.width(); x += TILE_SIZE) {
+				int bottom = Math.min(y + TILE_SIZE, layer.height());
+				int right = Math.min(x + TILE_SIZE, layer.width());
+				int pixelLength = (bottom - y) * (right - x) * elemSize;
+				if ((buffer.position() + TILE_HEADER_SIZE) > end) {
+					throw new IOException("Broken tile in session file");
+				}
+				byte encoding = buffer.get();
+				int length = buffer.getInt();
+				if ((length < 0) || (length > (end - buffer.position()))) {
+					throw new IOException("Broken tile in session file");
+				}
+				// Runs beyond the tile overflow raw and are caught as a broken file by read()
+				if ((encoding == ENCODING_RLE) && (length <= encoded.length) && ((length % (2 + elemSize)) == 0)) {
+					buffer.get(encoded, 0, length);
+					if (RunLengthCodec.decode(encoded, 0, length, elemSize, raw) != pixelLength) {
+						throw new IOException("Broken tile in session file");
+					}
+				} else if ((encoding == ENCODING_RAW) && (length == pixelLength)) {
+					buffer.get(raw, 0, length);
+				} else {
+					throw new IOException("Broken tile in session file");
+				}
+				Mat tile = layer.submat(y, bottom, x, right);
+				tile.put(0, 0, raw);
+				tile.release();
+			}
+		}
+	}
+
+	private static void awaitQueued() {
+		try {
+			sExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void release(Mat[] layers) {
+		if (layers == null) {
+			return;
+		}
+		for (Mat layer : layers) {
+			if (layer != null) {
+				layer.release();
+			}
+		}
+	}
+}
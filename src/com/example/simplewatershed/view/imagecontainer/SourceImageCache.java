@@ -0,0 +1,222 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import android.os.Process;
+
+/**
+ * Images derived from one loaded source image, the downscaled levels of its pyramid.<br>
+ * Entries are computed lazily on the first {@link #get(int)}, or ahead of time on a background thread by {@link #prefetch(int...)}, and kept
+ * until {@link #release()}. A new cache should be created for each loaded image, so per-stroke segmentation only pays for the marker-dependent
+ * work.<br>
+ * Each entry is computed once by the first thread asking for it, without holding the lock of the cache. Other threads asking for the same
+ * entry wait for it, and entries which are ready, e.g. {@link #SOURCE}, are never blocked by a prefetch.<br>
+ * Computations read the entries they depend on without the lock too, so {@link #release()} frees the entries only when no computation is
+ * running, or else the last one to finish frees them.<br>
+ * <strong>Note:</strong> The cache owns the source mat. Mats from {@link #get(int)} must not be released by the caller.
+ */
+public class SourceImageCache {
+	/** The 3 channel source image */
+	public static final int SOURCE = 0;
+	/** Base of downscaled levels, LEVEL + n is the source scaled by 1 / 2^n */
+	public static final int LEVEL = 1;
+
+	private static final AtomicInteger sImageId = new AtomicInteger();
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "SourceImageCache");
+		}
+	});
+
+	private final int mImageId;
+	// Guarded by this, an entry is added before it's computed
+	private final Map<Integer, FutureTask<Mat>> mEntries;
+	private boolean mReleased;
+	// Guarded by this, the number of entries being computed
+	private int mComputing;
+
+	/**
+	 * @param sourceMat
+	 *            The 3 channel source image, owned by the cache after this call
+	 */
+	public SourceImageCache(final Mat sourceMat) {
+		mImageId = sImageId.incrementAndGet();
+		mEntries = new HashMap<Integer, FutureTask<Mat>>();
+		FutureTask<Mat> source = new FutureTask<Mat>(new Callable<Mat>() {
+			@Override
+			public Mat call() {
+				return sourceMat;
+			}
+		});
+		source.run();
+		mEntries.put(SOURCE, source);
+	}
+
+	/**
+	 * Get the id of the loaded image, different for each cache
+	 */
+	public int getImageId() {
+		return mImageId;
+	}
+
+	public Mat getSource() {
+		return get(SOURCE);
+	}
+
+	/**
+	 * Get the source scaled by 1 / 2^level, level 0 is the source itself.
+	 */
+	public Mat getLevel(int level) {
+		return get(LEVEL + level);
+	}
+
+	/**
+	 * Get the entry, it's computed on the calling thread if no thread is computing it yet, or waited for if another thread is.
+	 *
+	 * @param key
+	 *            {@link #SOURCE} or {@link #LEVEL} + n
+	 * @return The entry, null if the cache was released.
+	 */
+	public Mat get(final int key) {
+		FutureTask<Mat> task;
+		boolean owner = false;
+		synchronized (this) {
+			if (mReleased) {
+				return null;
+			}
+			task = mEntries.get(key);
+			if (task == null) {
+				task = new FutureTask<Mat>(new Callable<Mat>() {
+					@Override
+					public Mat call() {
+						return compute(key);
+					}
+				});
+				mEntries.put(key, task);
+				mComputing++;
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					mComputing--;
+					if (mReleased && (mComputing == 0)) {
+						releaseEntries();
+					}
+				}
+			}
+		}
+		Mat entry;
+		try {
+			entry = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				if (mReleased) {
+					// An entry it depends on was released meanwhile
+					return null;
+				}
+				// Let the next call try again
+				if (mEntries.get(key) == task) {
+					mEntries.remove(key);
+				}
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+
+		synchronized (this) {
+			if (mReleased) {
+				// Released while computing, the entry is freed with the others
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Compute the entries on a background thread, the entries which are ready are skipped.
+	 */
+	public void prefetch(final int... keys) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int key : keys) {
+					get(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Release all entries including the source. While entries are being computed, the entries they may read are kept, and all are released
+	 * by the last computing thread when it's done.
+	 */
+	public synchronized void release() {
+		mReleased = true;
+		if (mComputing == 0) {
+			releaseEntries();
+		}
+	}
+
+	/**
+	 * Called with the lock when no entry is being computed, so all entries are done.
+	 */
+	private void releaseEntries() {
+		for (FutureTask<Mat> task : mEntries.values()) {
+			if (task.isDone()) {
+				try {
+					task.get().release();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// Nothing was computed
+				}
+			}
+		}
+		mEntries.clear();
+	}
+
+	/**
+	 * Called without the lock, entries it depends on are taken by {@link #get(int)} first.
+	 */
+	private Mat compute(int key) {
+		if (key > LEVEL) {
+			// Build from the previous level, which is cached as well
+			Mat entry = new Mat();
+			Imgproc.pyrDown(get(key - 1), entry);
+			return entry;
+		} else if (key == LEVEL) {
+			// Level 0 shares the data of source
+			Mat source = get(SOURCE);
+			return source.submat(0, source.rows(), 0, source.cols());
+		}
+		throw new IllegalArgumentException("Unknown key: " + key);
+	}
+}
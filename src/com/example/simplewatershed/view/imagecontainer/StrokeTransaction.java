@@ -0,0 +1,220 @@
+package com.example.simplewatershed.view.imagecontainer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import com.example.simplewatershed.segmentation.MaskBounds;
+import com.example.simplewatershed.segmentation.WatershedSegmenter;
+
+/**
+ * Keep the pre-stroke state of layers with copy-on-write tiles.<br>
+ * Before a layer is drawn, call {@link #touch(int, int, int, int, int)} with the area to be changed, only the tiles touched for the first time
+ * in the stroke are copied. {@link #rollback()} restores all of them, {@link #commit()} keeps the changes. Tile mats are reused across
+ * strokes, so native memory stays flat no matter how many strokes are drawn.<br>
+ * <strong>Note:</strong> Always call {@link #release()} when the layers are no longer used.
+ */
+public class StrokeTransaction {
+	// The same tiles as the bounds of layers, so a restored tile is scanned once
+	public static final int TILE_SIZE = MaskBounds.TILE_SIZE;
+
+	// The layers, their index is used as the layer id
+	private Mat[] mLayers;
+	private int mTilesX;
+	private int mTilesY;
+	// Whether the tile has been saved in the current stroke, indexed by [layer][tileY * mTilesX + tileX]
+	private boolean[][] mSaved;
+
+	// Tiles saved in the current stroke
+	private List<Tile> mTiles;
+	// Unused tiles for each layer
+	private List<List<Tile>> mFreeTiles;
+	private boolean mOpen;
+
+	public StrokeTransaction() {
+		mTiles = new ArrayList<Tile>();
+		mFreeTiles = new ArrayList<List<Tile>>();
+	}
+
+	/**
+	 * Bind new layers, all tiles of the old layers are released.
+	 *
+	 * @param layers
+	 *            Layers with the same size, the index of each layer is used as its id
+	 */
+	public void reset(Mat... layers) {
+		release();
+		mLayers = layers;
+		mTilesX = (layers[0].width() + TILE_SIZE - 1) / TILE_SIZE;
+		mTilesY = (layers[0].height() + TILE_SIZE - 1) / TILE_SIZE;
+		mSaved = new boolean[layers.length][mTilesX * mTilesY];
+		for (int i = 0; i < layers.length; i++) {
+			mFreeTiles.add(new ArrayList<Tile>());
+		}
+	}
+
+	/**
+	 * Start a new stroke, the last one is committed if it's still open.
+	 */
+	public void begin() {
+		if (mOpen) {
+			commit();
+		}
+		mOpen = true;
+	}
+
+	/**
+	 * Save the tiles in the area before the layer is changed.
+	 *
+	 * @param layer
+	 *            The id of layer
+	 */
+	public void touch(int layer, int left, int top, int right, int bottom) {
+		if (!mOpen) {
+			return;
+		}
+		int fromX = Math.max(left, 0) / TILE_SIZE;
+		int fromY = Math.max(top, 0) / TILE_SIZE;
+		int toX = Math.min((Math.max(right, 0) - 1) / TILE_SIZE, mTilesX - 1);
+		int toY = Math.min((Math.max(bottom, 0) - 1) / TILE_SIZE, mTilesY - 1);
+		boolean[] saved = mSaved[layer];
+		for (int y = fromY; y <= toY; y++) {
+			for (int x = fromX; x <= toX; x++) {
+				int index = (y * mTilesX) + x;
+				if (!saved[index]) {
+					saved[index] = true;
+					saveTile(layer, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restore all layers to the state before the stroke, and close it.
+	 *
+	 * @return The {@link Rect} contains all restored tiles, null if nothing changed.
+	 */
+	public Rect rollback() {
+		Rect bounds = null;
+		for (int i = 0; i < mTiles.size(); i++) {
+			Tile tile = mTiles.get(i);
+			Rect rect = getTileRect(tile.mIndex);
+			Mat src = tile.mMat.submat(0, rect.height, 0, rect.width);
+			Mat dst = mLayers[tile.mLayer].submat(rect);
+			src.copyTo(dst);
+			src.release();
+			dst.release();
+			bounds = WatershedSegmenter.unionRect(bounds, rect);
+		}
+		close();
+		return bounds;
+	}
+
+	/**
+	 * Keep the changes of the stroke, and close it.
+	 */
+	public void commit() {
+		close();
+	}
+
+	/**
+	 * Keep the changes of the stroke, record them as a step of history, and close it. Tiles of layers not tracked by the history are only
+	 * kept for {@link #rollback()}.
+	 *
+	 * @param history
+	 *            The history bound to the same layers, or the first ones of them
+	 */
+	public void commit(EditHistory history) {
+		history.beginStep();
+		for (int i = 0; i < mTiles.size(); i++) {
+			Tile tile = mTiles.get(i);
+			if (!history.isTracked(tile.mLayer)) {
+				continue;
+			}
+			Rect rect = getTileRect(tile.mIndex);
+			Mat after = mLayers[tile.mLayer].submat(rect);
+			history.addTile(tile.mLayer, rect, tile.mMat, after);
+			after.release();
+		}
+		history.endStep();
+		close();
+	}
+
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	/**
+	 * Get the number of tiles saved in the current stroke
+	 */
+	public int getTileCount() {
+		return mTiles.size();
+	}
+
+	/**
+	 * Release all tile mats, the transaction can be used again after {@link #reset(Mat...)}.
+	 */
+	public void release() {
+		close();
+		for (int i = 0; i < mFreeTiles.size(); i++) {
+			List<Tile> tiles = mFreeTiles.get(i);
+			for (int j = 0; j < tiles.size(); j++) {
+				tiles.get(j).mMat.release();
+			}
+		}
+		mFreeTiles.clear();
+		mLayers = null;
+		mSaved = null;
+	}
+
+	private void saveTile(int layer, int index) {
+		List<Tile> freeTiles = mFreeTiles.get(layer);
+		Tile tile;
+		if (freeTiles.isEmpty()) {
+			tile = new Tile(new Mat(TILE_SIZE, TILE_SIZE, mLayers[layer].type()));
+		} else {
+			tile = freeTiles.remove(freeTiles.size() - 1);
+		}
+		tile.mLayer = layer;
+		tile.mIndex = index;
+
+		Rect rect = getTileRect(index);
+		Mat src = mLayers[layer].submat(rect);
+		Mat dst = tile.mMat.submat(0, rect.height, 0, rect.width);
+		src.copyTo(dst);
+		src.release();
+		dst.release();
+		mTiles.add(tile);
+	}
+
+	/**
+	 * Return all tiles to the free lists, and clear the saved flags.
+	 */
+	private void close() {
+		for (int i = 0; i < mTiles.size(); i++) {
+			Tile tile = mTiles.get(i);
+			mSaved[tile.mLayer][tile.mIndex] = false;
+			mFreeTiles.get(tile.mLayer).add(tile);
+		}
+		mTiles.clear();
+		mOpen = false;
+	}
+
+	private Rect getTileRect(int index) {
+		int x = (index % mTilesX) * TILE_SIZE;
+		int y = (index / mTilesX) * TILE_SIZE;
+		return new Rect(x, y, Math.min(TILE_SIZE, mLayers[0].width() - x), Math.min(TILE_SIZE, mLayers[0].height() - y));
+	}
+
+	private static class Tile {
+		private final Mat mMat;
+		private int mLayer;
+		private int mIndex;
+
+		private Tile(Mat mat) {
+			mMat = mat;
+		}
+	}
+}